@@ -1,5 +1,7 @@
 package simpledb.buffer;
 
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 
@@ -10,6 +12,12 @@ import simpledb.log.LogMgr;
  * the number of times the buffer has been pinned,
  * whether its contents have been modified,
  * and if so, the id and lsn of the modifying transaction.
+ * <p>
+ * Since transactions that lock different records of a block
+ * may use its buffer at the same time, the page has a latch,
+ * which a thread holds while it reads or changes the page,
+ * and which is held while the page is written to disk.
+ * The buffer's status is guarded by the buffer itself.
  * @author Edward Sciore
  */
 public class Buffer {
@@ -20,7 +28,12 @@ public class Buffer {
    private BlockId blk = null;   /* ID of the block */
    private int pins = 0;         /* the number of times the buffer has been pinned */
    private int txnum = -1;       /* dirty flag. The ID of the modifying transaction for this buffer */
-   private int lsn = -1;         /* log sequence number */
+   private long lsn = -1;         /* log sequence number */
+   private long recLSN = -1;      /* the LSN of the first logged change since the page was last written */
+   private boolean unlogged = false; /* true if the page has changes that the log cannot redo */
+   private boolean loading = false; /* true while the block is being read ahead */
+   private boolean readAhead = false; /* true from a read ahead until the block is first pinned */
+   private final ReentrantLock latch = new ReentrantLock(); /* guards the contents of the page */
 
    /**
     * Constructor 
@@ -58,13 +71,34 @@ public class Buffer {
    /**
     * Set the ID of the transaction that modified this buffer and 
     * set its log sequence number.
+    * The first logged change to a clean page also
+    * sets the page's recovery LSN.
+    * The page keeps the largest LSN it has been given,
+    * so that its write always waits for its latest change
+    * to be logged, whatever the order of the calls.
+    * A negative LSN denotes a change that was not logged.
     * @param txnum the ID of the transaction      
     * @param lsn the log sequence number
     */
-   public void setModified(int txnum, int lsn) {
+   public synchronized void setModified(int txnum, long lsn) {
       this.txnum = txnum;
-      if (lsn >= 0)
-         this.lsn = lsn;
+      if (lsn >= 0) {
+         this.lsn = Math.max(this.lsn, lsn);
+         if (recLSN < 0 || lsn < recLSN)
+            recLSN = lsn;
+      }
+      else
+         unlogged = true;
+   }
+
+   /**
+    * Returns the LSN of the earliest log record whose
+    * change may not yet be on disk, or -1 if the page
+    * has no logged changes since it was last written.
+    * @return the page's recovery LSN
+    */
+   public synchronized long recoveryLSN() {
+      return recLSN;
    }
 
    /**
@@ -80,13 +114,40 @@ public class Buffer {
     * Return the ID of the modifying transaction 
     * @return -1 if this buffer is not dirty
     */
-   public int modifyingTx() {
+   public synchronized int modifyingTx() {
       return txnum;
    }
 
    /**
-    * Reads the contents of the specified block into
-    * the contents of the buffer.
+    * Return true if the page has changes that were
+    * not logged since it was last written, and so
+    * can be made durable only by writing the page.
+    */
+   synchronized boolean hasUnloggedChanges() {
+      return unlogged;
+   }
+
+   /**
+    * Acquires the latch of the page, waiting if another
+    * thread holds it. The latch must be held while the
+    * page is read or changed, and must be released by
+    * calling {@link #unlatch()}.
+    */
+   public void latch() {
+      latch.lock();
+   }
+
+   /**
+    * Releases the latch of the page.
+    */
+   public void unlatch() {
+      latch.unlock();
+   }
+
+   /**
+    * Assigns the buffer to the specified block without
+    * reading its contents, which the caller reads later
+    * by calling {@link #readContents()}.
     * If the buffer was dirty, then its previous contents
     * are first written to disk.
     * @param b a reference to the data block
@@ -94,8 +155,35 @@ public class Buffer {
    void assignToBlock(BlockId b) {
       flush(); // if the buffer is dirty, flush to disk
       blk = b;
-      fm.read(blk, contents);  // read the contents of the specified block
       pins = 0;
+      readAhead = false;
+   }
+
+   /**
+    * Reads the contents of the assigned block into the buffer.
+    */
+   void readContents() {
+      fm.read(blk, contents);  // read the contents of the specified block
+   }
+
+   /**
+    * Return true if the buffer's block is being read ahead,
+    * in which case its contents cannot be used yet.
+    */
+   boolean isLoading() {
+      return loading;
+   }
+
+   void setLoading(boolean loading) {
+      this.loading = loading;
+   }
+
+   boolean isReadAhead() {
+      return readAhead;
+   }
+
+   void setReadAhead(boolean readAhead) {
+      this.readAhead = readAhead;
    }
    
    /**
@@ -103,10 +191,70 @@ public class Buffer {
     * and write the buffer to its disk block 
     */
    void flush() {
-      if (txnum >= 0) {            // if the buffer is dirty,
-         lm.flush(lsn);            // write the log entry in a log file
-         fm.write(blk, contents);  // write the buffer to its disk block
-         txnum = -1;
+      latch.lock();
+      try {
+         synchronized (this) {
+            if (txnum >= 0) {            // if the buffer is dirty,
+               lm.flush(lsn);            // write the log entry in a log file
+               fm.write(blk, contents);  // write the buffer to its disk block
+               txnum = -1;
+               recLSN = -1;
+               unlogged = false;
+            }
+         }
+      }
+      finally {
+         latch.unlock();
+      }
+   }
+
+   /**
+    * Flushes the specified buffers together.
+    * The log is flushed once, up to the largest LSN
+    * of the dirty buffers, and the dirty buffers are then
+    * written in block order, so that buffers holding
+    * consecutive blocks go to disk in a single write.
+    * The buffers must share the same file and log managers.
+    * The latches of the dirty buffers are held while they are written.
+    * The writes are not forced to disk.
+    * @param buffs the buffers to flush
+    */
+   static void flush(List<Buffer> buffs) {
+      List<Buffer> dirty = new ArrayList<>();
+      for (Buffer buff : buffs)
+         if (buff.modifyingTx() >= 0)
+            dirty.add(buff);
+      if (dirty.isEmpty())
+         return;
+      dirty.sort(Comparator.comparing((Buffer b) -> b.blk.fileName())
+                           .thenComparingInt(b -> b.blk.number()));
+      for (Buffer buff : dirty)
+         buff.latch.lock();
+      try {
+         long maxlsn = -1;
+         BlockId[] blks = new BlockId[dirty.size()];
+         Page[] pages = new Page[dirty.size()];
+         for (int i = 0; i < blks.length; i++) {
+            Buffer buff = dirty.get(i);
+            synchronized (buff) {
+               maxlsn = Math.max(maxlsn, buff.lsn);
+            }
+            blks[i] = buff.blk;
+            pages[i] = buff.contents;
+         }
+         Buffer first = dirty.get(0);
+         first.lm.flush(maxlsn);
+         first.fm.write(blks, pages);
+         for (Buffer buff : dirty)
+            synchronized (buff) {
+               buff.txnum = -1;
+               buff.recLSN = -1;
+               buff.unlogged = false;
+            }
+      }
+      finally {
+         for (Buffer buff : dirty)
+            buff.latch.unlock();
       }
    }
 
@@ -1,107 +1,261 @@
 package simpledb.buffer;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
+ * The buffer pool is partitioned into shards by the hash of
+ * each block's extent; each shard is locked independently,
+ * so the manager itself holds no global monitor.
  * @author Edward Sciore
  *
  */
 public class BufferMgr {
-   private final LinkedList<Buffer> unpinnedBuffers; /* LRU list */
-   private final LinkedList<Buffer> unallocatedBuffers;
-   private final Map<BlockId, Buffer> allocatedBuffers;
-   private int numAvailable;                    /* the number of available (unpinned) buffer slots */
+   private final BufferShard[] shards;
+   private final AtomicInteger numAvailable;    /* the number of available (unpinned) buffer slots */
+   private final BufferStats stats = new BufferStats();
+   private final FileMgr fm;
+   private PageWriter writer = null;
+   private Prefetcher prefetcher = null;
    private static final long MAX_TIME = 10000;  /* 10 seconds */
+   private static final int MAX_SHARDS = 16;
+   private static final int MIN_SHARD_SIZE = 16; /* smaller pools are not worth splitting */
+   private static final int EXTENT_SIZE = 8;     /* consecutive blocks that share a shard */
    
    /**
     * Constructor:  Creates a buffer manager having the specified 
     * number of buffer slots.
+    * The number of shards is chosen from the size of the pool;
+    * pools of fewer than 2*MIN_SHARD_SIZE buffers use a single shard.
     * This constructor depends on a {@link FileMgr} and
     * {@link simpledb.log.LogMgr LogMgr} object.
+    * The buffers are replaced in LRU order.
     * @param numbuffs the number of buffer slots to allocate
     */
    public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs) {
-      unpinnedBuffers = new LinkedList<>();
-      unallocatedBuffers = new LinkedList<>();
-      for (int i = 0; i < numbuffs; i++)
-         unallocatedBuffers.addLast(new Buffer(fm, lm, i));
+      this(fm, lm, numbuffs, ReplacementStrategy.LRU);
+   }
+
+   /**
+    * Creates a buffer manager that uses the specified
+    * replacement strategy.
+    * @param numbuffs the number of buffer slots to allocate
+    * @param strategy the replacement strategy of each shard
+    */
+   public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs, ReplacementStrategy strategy) {
+      this(fm, lm, numbuffs, defaultShards(numbuffs), strategy);
+   }
 
-      allocatedBuffers = new HashMap<>();
-      numAvailable = numbuffs;
+   /**
+    * Creates a buffer manager whose buffer slots are
+    * partitioned into the specified number of shards.
+    * @param numbuffs the number of buffer slots to allocate
+    * @param numshards the number of shards
+    * @param strategy the replacement strategy of each shard
+    */
+   public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs, int numshards, ReplacementStrategy strategy) {
+      this.fm = fm;
+      numshards = Math.max(1, Math.min(numshards, numbuffs));
+      numAvailable = new AtomicInteger(numbuffs);
+      shards = new BufferShard[numshards];
+      for (int i = 0; i < numshards; i++) {
+         List<Buffer> buffs = new ArrayList<>();
+         for (int id = i; id < numbuffs; id += numshards)
+            buffs.add(new Buffer(fm, lm, id));
+         shards[i] = new BufferShard(buffs, strategy.newPolicy(buffs.size()), numAvailable, stats);
+      }
    }
 
    /**
     * Displays its current status.
     * The status consists of the ID, block, and pinned status of each buffer in the allocated map,
-    * plus the IDs of each buffer in the unpinned list.
-    */
-   public synchronized void printStatus() {
-      System.out.println("Allocated Buffers:");
-      for (Buffer buff : allocatedBuffers.values()) {
-         System.out.print("Buffer " + buff.getId() + ": " + buff.block().toString());
-         if (buff.isPinned())
-            System.out.println(" pinned");
-         else
-            System.out.println(" unpinned");
+    * plus the IDs of each unpinned buffer in replacement order.
+    * When the pool has several shards, the status of each shard is displayed in turn.
+    */
+   public void printStatus() {
+      for (int i = 0; i < shards.length; i++) {
+         if (shards.length > 1)
+            System.out.println("Shard " + i + ":");
+         shards[i].printStatus();
       }
-
-      System.out.print("Unpinned Buffers in LRU order: ");
-      for (Buffer buff : unpinnedBuffers)
-         System.out.print(buff.getId() + " ");
-      System.out.println();
    }
    
+   /**
+    * Starts a background thread that periodically writes
+    * dirty unpinned buffers ahead of their replacement.
+    * The method does nothing if the writer is already running.
+    * @param interval the time between rounds of the writer, in milliseconds
+    */
+   public synchronized void startPageWriter(long interval) {
+      if (writer == null) {
+         writer = new PageWriter(shards, stats, interval);
+         writer.start();
+      }
+   }
+
+   /**
+    * Stops the background page writer, if it is running.
+    */
+   public synchronized void stopPageWriter() {
+      if (writer != null) {
+         writer.shutdown();
+         writer = null;
+      }
+   }
+
+   /**
+    * Starts a background thread that reads blocks requested
+    * by {@link #prefetch(BlockId, int)} into free buffers.
+    * The method does nothing if the prefetcher is already running.
+    */
+   public synchronized void startPrefetcher() {
+      if (prefetcher == null) {
+         prefetcher = new Prefetcher(this, fm);
+         prefetcher.start();
+      }
+   }
+
+   /**
+    * Stops the background prefetcher, if it is running.
+    */
+   public synchronized void stopPrefetcher() {
+      if (prefetcher != null) {
+         prefetcher.shutdown();
+         prefetcher = null;
+      }
+   }
+
+   /**
+    * Asks for the specified number of consecutive blocks,
+    * starting with the specified block, to be read into the pool
+    * asynchronously. The blocks are not pinned; a later
+    * pin of one of them is simply a hit.
+    * Blocks beyond the end of the file are ignored.
+    * The method does nothing if the prefetcher is not running,
+    * or if its queue of requests is full.
+    * @param blk the first block to read
+    * @param count the number of blocks to read
+    */
+   public void prefetch(BlockId blk, int count) {
+      Prefetcher p = prefetcher;
+      if (p == null)
+         return;
+      for (int i = 0; i < count; i++)
+         if (!p.request(new BlockId(blk.fileName(), blk.number() + i)))
+            return;
+   }
+
+   /**
+    * Stops the background threads of the pool,
+    * and writes every dirty buffer to disk.
+    */
+   public void close() {
+      stopPageWriter();
+      stopPrefetcher();
+      for (BufferShard shard : shards)
+         shard.flushAll();
+      fm.forceAll();
+   }
+
+   /**
+    * Returns the statistics of the buffer pool:
+    * hits, misses, evictions, dirty evictions and
+    * the time spent waiting in {@link #pin(BlockId)}.
+    * @return the pool's statistics
+    */
+   public BufferStats stats() {
+      return stats;
+   }
+
    /**
     * Returns the number of available (i.e. unpinned) buffers.
     * @return the number of available buffers
     */
-   public synchronized int available() {
-      return numAvailable;
+   public int available() {
+      return numAvailable.get();
    }
    
    /**
-    * Flushes the dirty buffers modified by the specified transaction.
+    * Flushes the dirty buffers modified by the specified transaction,
+    * and then forces every file that has unforced writes.
+    * Forcing all such files, and not just those written here,
+    * also makes durable the transaction's pages that were
+    * written earlier by an eviction or by the page writer.
     * @param txnum the transaction's id number
     */
-   public synchronized void flushAll(int txnum) {
-      for (Buffer buff : allocatedBuffers.values())
-         if (buff.modifyingTx() == txnum)
-            buff.flush();
+   public void flushAll(int txnum) {
+      for (BufferShard shard : shards)
+         shard.flushAll(txnum);
+      fm.forceAll();
    }
    
+   /**
+    * Flushes the buffers holding changes of the specified
+    * transaction that were made without a log record,
+    * and then forces every file that has unforced writes
+    * if there were any such buffers.
+    * The log cannot redo such changes, so a transaction
+    * must write them before it commits; its logged changes
+    * may stay in the pool.
+    * @param txnum the transaction's id number
+    */
+   public void flushUnlogged(int txnum) {
+      int written = 0;
+      for (BufferShard shard : shards)
+         written += shard.flushUnlogged(txnum);
+      if (written > 0)
+         fm.forceAll();
+   }
+
+   /**
+    * Forces the pages that the buffers have written,
+    * by an eviction or by the page writer, to disk.
+    * A written page leaves the dirty page table, so it
+    * must be durable before a checkpoint omits it.
+    */
+   public void forceWritten() {
+      fm.forceAll();
+   }
+
+   /**
+    * Returns the dirty page table of the pool: each block whose
+    * buffer has logged changes that are not yet on disk,
+    * mapped to the LSN of the earliest such change.
+    * The shards are visited one at a time, so the table
+    * is taken without stopping the other shards.
+    * @return the dirty page table
+    */
+   public Map<BlockId,Long> dirtyPages() {
+      Map<BlockId,Long> dpt = new HashMap<>();
+      for (BufferShard shard : shards)
+         shard.dirtyPages(dpt);
+      return dpt;
+   }
+
    /**
     * Unpins the specified data buffer. If its pin count
-    * goes to zero, then notify any waiting threads.
+    * goes to zero, then notify a thread waiting on its shard.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      buff.unpin();
-      if (!buff.isPinned()) { // unpinned
-         unpinnedBuffers.addLast(buff); // add it to the end of the LRU list
-         numAvailable++;
-         notifyAll(); // notify any waiting threads
-      }
+   public void unpin(Buffer buff) {
+      shardOf(buff.block()).unpin(buff);
    }
    
    /**
     * Pins a buffer to the specified block, potentially
-    * waiting until a buffer becomes available.
+    * waiting until a buffer of the block's shard becomes available,
+    * or another shard can lend one.
     * If no buffer becomes available within a fixed 
     * time period, then a {@link BufferAbortException} is thrown.
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(BlockId blk) {
+   public Buffer pin(BlockId blk) {
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = tryToPin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) { // try for 10 seconds
-            wait(MAX_TIME);
-            buff = tryToPin(blk);
-         }
+         Buffer buff = shardOf(blk).pin(blk, MAX_TIME, shards); // try for 10 seconds
          if (buff == null)
             throw new BufferAbortException();
          return buff;
@@ -110,68 +264,66 @@ public class BufferMgr {
          throw new BufferAbortException();
       }
    }
-   
+
    /**
-    * Returns true if starttime is older than 10 seconds
-    * @param starttime timestamp 
-    * @return true if waited for more than 10 seconds
+    * Reads the specified consecutive blocks into free buffers,
+    * skipping those that are already in the pool.
+    * Each run of blocks for which a buffer could be reserved
+    * is read with a single scatter read.
+    * If a read fails, its buffers are unassigned again,
+    * and the blocks are read when they are pinned.
+    * Called by the prefetcher thread.
+    * @param blk the first block to read
+    * @param count the number of blocks to read
     */
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+   void readAhead(BlockId blk, int count) {
+      List<Buffer> run = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+         BlockId b = new BlockId(blk.fileName(), blk.number() + i);
+         Buffer buff = shardOf(b).reserve(b);
+         if (buff != null)
+            run.add(buff);
+         else {
+            readRun(run);
+            run.clear();
+         }
+      }
+      readRun(run);
    }
-   
-   /**
-    * Tries to pin a buffer to the specified block. 
-    * If there is already a buffer assigned to that block
-    * then that buffer is used;
-    * otherwise, an unallocated or unpinned buffer is chosen.
-    * Returns a null value if there are no available buffers.
-    * @param blk a reference to a disk block
-    * @return the pinned buffer
-    */
-   private Buffer tryToPin(BlockId blk) {
-      Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
-         buff = chooseReplacementBuffer();
-         if (buff == null)
-            return null;
 
-         buff.assignToBlock(blk);
-         allocatedBuffers.remove(blk); // the mapping for the old block must be removed, and
-         allocatedBuffers.put(blk, buff); // the mapping for the new block must be added.
+   private void readRun(List<Buffer> run) {
+      if (run.isEmpty())
+         return;
+      Page[] pages = new Page[run.size()];
+      for (int i = 0; i < pages.length; i++)
+         pages[i] = run.get(i).contents();
+      try {
+         fm.read(run.get(0).block(), pages);
       }
-      if (!buff.isPinned()) { // unpinned
-         unpinnedBuffers.remove(buff); // remove from LRU list
-         numAvailable--;
+      catch(RuntimeException e) {
+         for (Buffer buff : run)
+            shardOf(buff.block()).abandoned(buff);
+         throw e;
       }
-      buff.pin();
-      return buff;
+      stats.recordPrefetches(pages.length);
+      for (Buffer buff : run)
+         shardOf(buff.block()).loaded(buff);
    }
-   
+
    /**
-    * Find and return a buffer assigned to the specified block.
+    * Returns the shard responsible for the specified block.
+    * Blocks are hashed in extents of EXTENT_SIZE consecutive
+    * blocks, so that the blocks of an extent share a shard
+    * and can be flushed together with a single write.
     * @param blk a reference to a disk block
-    * @return the found buffer
+    * @return the block's shard
     */
-   private Buffer findExistingBuffer(BlockId blk) {
-      for (Buffer buff : allocatedBuffers.values()) {
-         BlockId b = buff.block(); // return BlockID
-         if (b != null && b.equals(blk))
-            return buff;
-      }
-      return null;
+   private BufferShard shardOf(BlockId blk) {
+      int hash = 31 * blk.fileName().hashCode() + blk.number() / EXTENT_SIZE;
+      return shards[Math.floorMod(hash, shards.length)];
    }
-   
-   /**
-    * Find and return an available buffer (either unallocated or unpinned) for replacement.
-    * @return the replacement buffer
-    */
-   private Buffer chooseReplacementBuffer() {
-      if (!unallocatedBuffers.isEmpty())
-         return unallocatedBuffers.removeFirst();
-      else if (!unpinnedBuffers.isEmpty())
-         return unpinnedBuffers.removeFirst(); // remove the buffer at the head of the list
-      else
-         return null;
+
+   private static int defaultShards(int numbuffs) {
+      return Math.max(1, Math.min(MAX_SHARDS, numbuffs / MIN_SHARD_SIZE));
    }
 }
@@ -0,0 +1,469 @@
+package simpledb.buffer;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.*;
+import simpledb.file.*;
+
+/**
+ * One partition of the buffer pool.
+ * A shard owns a fixed subset of the buffers, and manages
+ * the blocks whose ids hash to it. Each shard has its own
+ * lock, replacement policy and block map, so that pins of
+ * blocks in different shards never contend with each other.
+ * A thread waiting for a buffer waits only on the condition
+ * of the shard that its block belongs to.
+ * <p>
+ * When every buffer of a shard is pinned, a pin borrows an
+ * unpinned buffer from another shard, which then belongs to
+ * this one. The pinned blocks of a transaction may hash to
+ * a single shard, and the pool would otherwise refuse pins
+ * while {@link BufferMgr#available()} reports free buffers.
+ */
+class BufferShard {
+   private static final long BORROW_RETRY = TimeUnit.MILLISECONDS.toNanos(50);
+
+   private final ReentrantLock lock = new ReentrantLock();
+   private final Condition bufferFreed = lock.newCondition();
+   private final Condition bufferLoaded = lock.newCondition();
+   private final ReplacementPolicy policy;
+   private final LinkedList<Buffer> unallocatedBuffers = new LinkedList<>();
+   private final Map<BlockId, Buffer> allocatedBuffers = new HashMap<>();
+   private final AtomicInteger numAvailable; /* shared with the other shards of the pool */
+   private final BufferStats stats;          /* shared with the other shards of the pool */
+
+   /**
+    * Creates a shard that manages the specified buffers.
+    * @param buffs the buffers owned by this shard
+    * @param policy the policy that chooses buffers to replace
+    * @param numAvailable the pool-wide count of available buffers
+    * @param stats the pool-wide statistics
+    */
+   BufferShard(List<Buffer> buffs, ReplacementPolicy policy, AtomicInteger numAvailable, BufferStats stats) {
+      unallocatedBuffers.addAll(buffs);
+      this.policy = policy;
+      this.numAvailable = numAvailable;
+      this.stats = stats;
+   }
+
+   /**
+    * Pins a buffer to the specified block, waiting up to
+    * maxtime milliseconds for a buffer of this shard
+    * to become available, or for one to be lent by
+    * another shard. Since the other shards do not wake
+    * the waiting thread, it retries them periodically.
+    * If the block is being read ahead, the method also waits
+    * for the read to complete.
+    * @param blk a reference to a disk block
+    * @param maxtime the maximum time to wait, in milliseconds
+    * @param lenders the shards of the pool
+    * @return the pinned buffer, or null if none became available
+    * @throws InterruptedException if the waiting thread is interrupted
+    */
+   Buffer pin(BlockId blk, long maxtime, BufferShard[] lenders) throws InterruptedException {
+      long start = System.nanoTime();
+      lock.lock();
+      try {
+         long waited = System.nanoTime() - start; // time spent acquiring the lock
+         long nanos = TimeUnit.MILLISECONDS.toNanos(maxtime);
+         Buffer buff = tryToPin(blk);
+         if (buff == null)
+            buff = borrow(blk, lenders);
+         boolean blocked = false;
+         while (buff == null && nanos > 0) {
+            blocked = true;
+            long before = System.nanoTime();
+            long left = bufferFreed.awaitNanos(Math.min(nanos, BORROW_RETRY));
+            nanos -= Math.min(nanos, BORROW_RETRY) - left;
+            waited += System.nanoTime() - before;
+            buff = tryToPin(blk);
+            if (buff == null)
+               buff = borrow(blk, lenders);
+         }
+         stats.recordWait(waited, blocked);
+         while (buff != null && (buff.isLoading() || allocatedBuffers.get(blk) != buff)) {
+            if (buff.isLoading())
+               bufferLoaded.await();
+            else { // the block could not be read ahead, so read it now
+               releaseAbandoned(buff);
+               buff = tryToPin(blk);
+            }
+         }
+         return buff;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Unpins the specified buffer. If its pin count
+    * goes to zero, then wake up one thread waiting on this shard.
+    * @param buff the buffer to be unpinned
+    */
+   void unpin(Buffer buff) {
+      lock.lock();
+      try {
+         release(buff);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Assigns a free buffer of this shard to the specified
+    * block, so that the block can be read ahead of its use.
+    * The buffer is pinned on behalf of the reader and marked
+    * as loading; any thread that pins the block meanwhile
+    * waits until {@link #loaded(Buffer)} is called.
+    * An unallocated buffer is used if there is one;
+    * otherwise the replacement policy chooses the buffer.
+    * @param blk a reference to a disk block
+    * @return the reserved buffer, or null if the block is
+    *         already in the pool or no buffer is available
+    */
+   Buffer reserve(BlockId blk) {
+      lock.lock();
+      try {
+         if (allocatedBuffers.containsKey(blk))
+            return null;
+         Buffer buff = assignFreeBuffer(blk);
+         if (buff == null)
+            return null;
+         buff.setLoading(true);
+         buff.setReadAhead(true);
+         numAvailable.decrementAndGet();
+         policy.pinned(buff, false);
+         buff.pin();
+         return buff;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Gives an unpinned buffer of this shard to another
+    * shard, assigned to the specified block of that shard.
+    * The buffer's old block is written if it is dirty,
+    * while this shard is locked, so that the block
+    * cannot be read again from disk meanwhile.
+    * The method does not wait for this shard's lock,
+    * so that two shards borrowing from each other
+    * cannot deadlock.
+    * @param blk the block that the buffer is assigned to
+    * @return the buffer, or null if none could be lent
+    */
+   Buffer lend(BlockId blk) {
+      if (!lock.tryLock())
+         return null;
+      try {
+         Buffer buff = chooseReplacementBuffer();
+         if (buff == null)
+            return null;
+         policy.removed(buff);
+         BlockId oldblk = buff.block();
+         if (oldblk != null) {
+            stats.recordEviction(buff.modifyingTx() >= 0);
+            allocatedBuffers.remove(oldblk);
+         }
+         buff.assignToBlock(blk);
+         return buff;
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Marks a reserved buffer as loaded, wakes up the threads
+    * waiting for its contents, and releases the reader's pin.
+    * @param buff a buffer returned by {@link #reserve(BlockId)}
+    */
+   void loaded(Buffer buff) {
+      lock.lock();
+      try {
+         buff.setLoading(false);
+         bufferLoaded.signalAll();
+         release(buff);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Unassigns a reserved buffer whose block could not be read,
+    * wakes up the threads waiting for its contents, and releases
+    * the reader's pin. The waiting threads then pin the block
+    * again, reading it themselves.
+    * @param buff a buffer returned by {@link #reserve(BlockId)}
+    */
+   void abandoned(Buffer buff) {
+      lock.lock();
+      try {
+         allocatedBuffers.remove(buff.block());
+         buff.setLoading(false);
+         bufferLoaded.signalAll();
+         releaseAbandoned(buff);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Flushes the buffers of this shard that were
+    * modified by the specified transaction.
+    * @param txnum the transaction's id number
+    */
+   void flushAll(int txnum) {
+      lock.lock();
+      try {
+         List<Buffer> buffs = new ArrayList<>();
+         for (Buffer buff : allocatedBuffers.values())
+            if (buff.modifyingTx() == txnum)
+               buffs.add(buff);
+         Buffer.flush(buffs);
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Flushes every dirty buffer of this shard.
+    */
+   void flushAll() {
+      lock.lock();
+      try {
+         Buffer.flush(new ArrayList<>(allocatedBuffers.values()));
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Flushes the buffers of this shard that hold changes
+    * of the specified transaction that were not logged.
+    * @param txnum the transaction's id number
+    * @return the number of buffers written
+    */
+   int flushUnlogged(int txnum) {
+      lock.lock();
+      try {
+         List<Buffer> buffs = new ArrayList<>();
+         for (Buffer buff : allocatedBuffers.values())
+            if (buff.modifyingTx() == txnum && buff.hasUnloggedChanges())
+               buffs.add(buff);
+         Buffer.flush(buffs);
+         return buffs.size();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Adds the blocks of this shard that have logged changes
+    * not yet on disk to the specified table, together with
+    * their recovery LSNs.
+    * Each page is latched while it is examined, so that
+    * a change that is being logged is seen together
+    * with its log record.
+    * @param dpt the dirty page table being built
+    */
+   void dirtyPages(Map<BlockId,Long> dpt) {
+      lock.lock();
+      try {
+         for (Buffer buff : allocatedBuffers.values()) {
+            buff.latch();
+            try {
+               long recLSN = buff.recoveryLSN();
+               if (buff.modifyingTx() >= 0 && recLSN >= 0)
+                  dpt.put(buff.block(), recLSN);
+            }
+            finally {
+               buff.unlatch();
+            }
+         }
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Writes the dirty buffers that are next in line for replacement,
+    * namely those among the first quarter of the replacement candidates.
+    * The buffers are written together, so that consecutive
+    * blocks go to disk in a single write.
+    * @return the number of buffers written
+    */
+   int writeAhead() {
+      lock.lock();
+      try {
+         List<Buffer> candidates = policy.replacementOrder();
+         int limit = Math.max(1, candidates.size() / 4);
+         List<Buffer> dirty = new ArrayList<>();
+         for (Buffer buff : candidates.subList(0, Math.min(limit, candidates.size())))
+            if (buff.modifyingTx() >= 0)
+               dirty.add(buff);
+         Buffer.flush(dirty);
+         return dirty.size();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Displays the allocated buffers of this shard,
+    * followed by its unpinned buffers in replacement order.
+    */
+   void printStatus() {
+      lock.lock();
+      try {
+         System.out.println("Allocated Buffers:");
+         for (Buffer buff : allocatedBuffers.values()) {
+            System.out.print("Buffer " + buff.getId() + ": " + buff.block().toString());
+            if (buff.isPinned())
+               System.out.println(" pinned");
+            else
+               System.out.println(" unpinned");
+         }
+
+         System.out.print("Unpinned Buffers in replacement order: ");
+         for (Buffer buff : policy.replacementOrder())
+            System.out.print(buff.getId() + " ");
+         System.out.println();
+      }
+      finally {
+         lock.unlock();
+      }
+   }
+
+   /**
+    * Decrements the pin count of the buffer. If it goes
+    * to zero, then wake up one thread waiting on this shard.
+    * The caller must hold the shard's lock.
+    */
+   private void release(Buffer buff) {
+      buff.unpin();
+      if (!buff.isPinned()) { // unpinned
+         policy.unpinned(buff); // it is now a replacement candidate
+         numAvailable.incrementAndGet();
+         bufferFreed.signal();
+      }
+   }
+
+   /**
+    * Releases a pin on a buffer that was unassigned by
+    * {@link #abandoned(Buffer)}. Once the buffer is unpinned,
+    * it is left to the replacement policy without a block.
+    * The caller must hold the shard's lock.
+    */
+   private void releaseAbandoned(Buffer buff) {
+      release(buff);
+      if (!buff.isPinned())
+         buff.assignToBlock(null);
+   }
+
+   /**
+    * Tries to pin a buffer to the specified block.
+    * If there is already a buffer assigned to that block
+    * (found in constant time from the block map)
+    * then that buffer is used;
+    * otherwise, an unallocated or unpinned buffer is chosen.
+    * Returns a null value if there are no available buffers.
+    * The caller must hold the shard's lock.
+    * @param blk a reference to a disk block
+    * @return the pinned buffer
+    */
+   private Buffer tryToPin(BlockId blk) {
+      Buffer buff = allocatedBuffers.get(blk);
+      boolean hit = (buff != null);
+      if (!hit) {
+         buff = assignFreeBuffer(blk);
+         if (buff == null)
+            return null;
+         buff.readContents();
+         stats.recordMiss();
+      }
+      else
+         stats.recordHit();
+      if (!buff.isPinned()) // unpinned
+         numAvailable.decrementAndGet();
+      if (hit && buff.isReadAhead()) {
+         buff.setReadAhead(false);
+         policy.pinnedAfterReadAhead(buff);
+      }
+      else
+         policy.pinned(buff, hit);
+      buff.pin();
+      return buff;
+   }
+
+   /**
+    * Pins a buffer borrowed from another shard to the
+    * specified block, which is not in the pool.
+    * The caller must hold the shard's lock.
+    * @param blk a reference to a disk block
+    * @param lenders the shards of the pool
+    * @return the pinned buffer, or null if no shard lent one
+    */
+   private Buffer borrow(BlockId blk, BufferShard[] lenders) {
+      for (BufferShard shard : lenders) {
+         if (shard == this)
+            continue;
+         Buffer buff = shard.lend(blk);
+         if (buff != null) {
+            allocatedBuffers.put(blk, buff);
+            buff.readContents();
+            stats.recordMiss();
+            numAvailable.decrementAndGet();
+            policy.pinned(buff, false);
+            buff.pin();
+            return buff;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Chooses a buffer for replacement and assigns it to the
+    * specified block, without reading the block's contents.
+    * The block map is updated accordingly.
+    * @param blk a reference to a disk block
+    * @return the assigned buffer, or null if no buffer is available
+    */
+   private Buffer assignFreeBuffer(BlockId blk) {
+      Buffer buff = chooseReplacementBuffer();
+      if (buff == null)
+         return null;
+      BlockId oldblk = buff.block();
+      if (oldblk != null) {
+         stats.recordEviction(buff.modifyingTx() >= 0);
+         allocatedBuffers.remove(oldblk); // the mapping for the old block must be removed, and
+      }
+      buff.assignToBlock(blk);
+      allocatedBuffers.put(blk, buff); // the mapping for the new block must be added.
+      return buff;
+   }
+
+   /**
+    * Find and return an available buffer for replacement.
+    * Unallocated buffers are used first; after that,
+    * the replacement policy chooses among the unpinned buffers.
+    * @return the replacement buffer
+    */
+   private Buffer chooseReplacementBuffer() {
+      if (!unallocatedBuffers.isEmpty())
+         return unallocatedBuffers.removeFirst();
+      else
+         return policy.chooseVictim();
+   }
+}
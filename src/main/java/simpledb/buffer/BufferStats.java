@@ -0,0 +1,140 @@
+package simpledb.buffer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters that describe how well the buffer pool is working.
+ * The counters are shared by all shards of the pool,
+ * and are updated without locking.
+ * A client obtains the statistics by calling
+ * {@link BufferMgr#stats()}.
+ */
+public class BufferStats {
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+   private final LongAdder dirtyEvictions = new LongAdder();
+   private final LongAdder backgroundWrites = new LongAdder();
+   private final LongAdder prefetches = new LongAdder();
+   private final LongAdder pins = new LongAdder();
+   private final LongAdder waits = new LongAdder();
+   private final LongAdder waitNanos = new LongAdder();
+
+   /**
+    * Returns the number of pins that found their block already in the pool.
+    */
+   public long hits() {
+      return hits.sum();
+   }
+
+   /**
+    * Returns the number of pins that had to read their block from disk.
+    */
+   public long misses() {
+      return misses.sum();
+   }
+
+   /**
+    * Returns the number of times a block was replaced by another.
+    */
+   public long evictions() {
+      return evictions.sum();
+   }
+
+   /**
+    * Returns the number of replaced blocks that first had to be written to disk.
+    */
+   public long dirtyEvictions() {
+      return dirtyEvictions.sum();
+   }
+
+   /**
+    * Returns the number of dirty buffers written by the background page writer.
+    */
+   public long backgroundWrites() {
+      return backgroundWrites.sum();
+   }
+
+   /**
+    * Returns the number of blocks read ahead of their use by the prefetcher.
+    */
+   public long prefetches() {
+      return prefetches.sum();
+   }
+
+   /**
+    * Returns the number of pins that had to wait for a buffer to become available.
+    */
+   public long waits() {
+      return waits.sum();
+   }
+
+   /**
+    * Returns the fraction of pins that were hits.
+    */
+   public double hitRatio() {
+      long h = hits(), total = h + misses();
+      return (total == 0) ? 0.0 : (double) h / total;
+   }
+
+   /**
+    * Returns the average time, in milliseconds, that a pin
+    * spent waiting for its shard and for a buffer to become available.
+    */
+   public double averageWaitMillis() {
+      long total = pins.sum();
+      return (total == 0) ? 0.0 : waitNanos.sum() / 1e6 / total;
+   }
+
+   /**
+    * Sets all counters back to zero.
+    */
+   public void reset() {
+      hits.reset();
+      misses.reset();
+      evictions.reset();
+      dirtyEvictions.reset();
+      backgroundWrites.reset();
+      prefetches.reset();
+      pins.reset();
+      waits.reset();
+      waitNanos.reset();
+   }
+
+   public String toString() {
+      return "hits=" + hits() + " misses=" + misses()
+           + " evictions=" + evictions() + " dirtyEvictions=" + dirtyEvictions()
+           + " backgroundWrites=" + backgroundWrites() + " prefetches=" + prefetches()
+           + " waits=" + waits()
+           + String.format(" hitRatio=%.3f avgWaitMs=%.3f", hitRatio(), averageWaitMillis());
+   }
+
+   void recordHit() {
+      hits.increment();
+   }
+
+   void recordMiss() {
+      misses.increment();
+   }
+
+   void recordEviction(boolean dirty) {
+      evictions.increment();
+      if (dirty)
+         dirtyEvictions.increment();
+   }
+
+   void recordBackgroundWrites(int n) {
+      backgroundWrites.add(n);
+   }
+
+   void recordPrefetches(int n) {
+      prefetches.add(n);
+   }
+
+   void recordWait(long nanos, boolean blocked) {
+      pins.increment();
+      waitNanos.add(nanos);
+      if (blocked)
+         waits.increment();
+   }
+}
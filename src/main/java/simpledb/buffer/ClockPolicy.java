@@ -0,0 +1,103 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The CLOCK replacement policy.
+ * Each buffer has a reference bit that is set whenever
+ * the buffer is pinned. To choose a victim, a clock hand
+ * sweeps over the buffers; an unpinned buffer whose bit is set
+ * has the bit cleared and is passed over, and the first
+ * unpinned buffer whose bit is clear is replaced.
+ * Pinning and unpinning take constant time.
+ */
+class ClockPolicy implements ReplacementPolicy {
+   private final List<Buffer> frames;
+   private final Map<Buffer, Integer> positions = new HashMap<>();
+   private boolean[] referenced;
+   private int hand = 0;
+   private int numUnpinned = 0;
+
+   /**
+    * Creates a clock for a shard having the specified number of buffers.
+    * @param capacity the number of buffers in the shard
+    */
+   ClockPolicy(int capacity) {
+      frames = new ArrayList<>(capacity);
+      referenced = new boolean[capacity];
+   }
+
+   public void pinned(Buffer buff, boolean hit) {
+      Integer pos = positions.get(buff);
+      if (pos == null) { // first time this buffer is seen
+         pos = frames.size();
+         frames.add(buff);
+         positions.put(buff, pos);
+         if (pos == referenced.length) // a buffer lent by another shard
+            referenced = Arrays.copyOf(referenced, 2 * pos);
+      }
+      else if (hit && !buff.isPinned())
+         numUnpinned--;
+      referenced[pos] = true;
+   }
+
+   public void pinnedAfterReadAhead(Buffer buff) {
+      pinned(buff, true); // the reference bit is all the clock keeps
+   }
+
+   public void unpinned(Buffer buff) {
+      numUnpinned++;
+   }
+
+   public Buffer chooseVictim() {
+      if (numUnpinned == 0)
+         return null;
+      // at most two sweeps: the first may only clear reference bits
+      for (int i = 0; i < 2 * frames.size(); i++) {
+         Buffer buff = frames.get(hand);
+         int pos = hand;
+         hand = (hand + 1) % frames.size();
+         if (buff.isPinned())
+            continue;
+         if (referenced[pos])
+            referenced[pos] = false; // give it a second chance
+         else {
+            numUnpinned--;
+            return buff;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Removes the buffer's frame from the clock, by moving
+    * the last frame into its place.
+    */
+   public void removed(Buffer buff) {
+      Integer pos = positions.remove(buff);
+      if (pos == null) // never pinned in this shard
+         return;
+      int last = frames.size() - 1;
+      Buffer moved = frames.remove(last);
+      if (pos != last) {
+         frames.set(pos, moved);
+         positions.put(moved, pos);
+         referenced[pos] = referenced[last];
+      }
+      if (hand >= frames.size())
+         hand = 0;
+   }
+
+   public List<Buffer> replacementOrder() {
+      List<Buffer> cold = new ArrayList<>();
+      List<Buffer> hot = new ArrayList<>();
+      for (int i = 0; i < frames.size(); i++) {
+         int pos = (hand + i) % frames.size();
+         Buffer buff = frames.get(pos);
+         if (!buff.isPinned())
+            (referenced[pos] ? hot : cold).add(buff);
+      }
+      cold.addAll(hot);
+      return cold;
+   }
+}
@@ -0,0 +1,42 @@
+package simpledb.buffer;
+
+import java.util.*;
+
+/**
+ * The least-recently-used replacement policy.
+ * The unpinned buffers are kept in a linked hash set
+ * in the order they were unpinned, so that
+ * every operation takes constant time.
+ */
+class LruPolicy implements ReplacementPolicy {
+   private final LinkedHashSet<Buffer> unpinnedBuffers = new LinkedHashSet<>(); /* LRU list */
+
+   public void pinned(Buffer buff, boolean hit) {
+      unpinnedBuffers.remove(buff);
+   }
+
+   public void pinnedAfterReadAhead(Buffer buff) {
+      unpinnedBuffers.remove(buff);
+   }
+
+   public void unpinned(Buffer buff) {
+      unpinnedBuffers.add(buff); // add it to the end of the LRU list
+   }
+
+   public Buffer chooseVictim() {
+      Iterator<Buffer> iter = unpinnedBuffers.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next(); // the buffer at the head of the list
+      iter.remove();
+      return buff;
+   }
+
+   public void removed(Buffer buff) {
+      // chooseVictim already removed it from the list
+   }
+
+   public List<Buffer> replacementOrder() {
+      return new ArrayList<>(unpinnedBuffers);
+   }
+}
@@ -0,0 +1,77 @@
+package simpledb.buffer;
+
+/**
+ * A background thread that writes dirty buffers to disk
+ * before they are chosen for replacement.
+ * Every interval, the writer visits each shard of the pool
+ * and flushes the dirty buffers among the first
+ * quarter of its replacement candidates.
+ * The flush of a buffer first flushes the log up to the
+ * buffer's LSN, so the write-ahead rule is respected.
+ * As a result, a pin that misses usually finds a clean
+ * buffer to replace, and pays only for the read.
+ */
+class PageWriter extends Thread {
+   private final BufferShard[] shards;
+   private final BufferStats stats;
+   private final long interval;
+   private boolean stopped = false;
+
+   /**
+    * Creates a daemon writer for the specified shards.
+    * @param shards the shards of the buffer pool
+    * @param stats the pool's statistics
+    * @param interval the time between rounds, in milliseconds
+    */
+   PageWriter(BufferShard[] shards, BufferStats stats, long interval) {
+      super("simpledb-page-writer");
+      this.shards = shards;
+      this.stats = stats;
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   /**
+    * Stops the writer after its current round,
+    * and waits for it to finish.
+    * The writer is not interrupted, since an interrupt
+    * would close the file that it may be writing.
+    */
+   void shutdown() {
+      synchronized(this) {
+         stopped = true;
+         notify();
+      }
+      boolean interrupted = false;
+      while (isAlive()) {
+         try {
+            join();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   public void run() {
+      try {
+         while (awaitRound()) {
+            for (BufferShard shard : shards) {
+               int written = shard.writeAhead();
+               stats.recordBackgroundWrites(written);
+            }
+         }
+      }
+      catch(InterruptedException e) {
+         // the writer was stopped
+      }
+   }
+
+   private synchronized boolean awaitRound() throws InterruptedException {
+      if (!stopped)
+         wait(interval);
+      return !stopped;
+   }
+}
@@ -0,0 +1,105 @@
+package simpledb.buffer;
+
+import java.util.concurrent.*;
+import simpledb.file.*;
+
+/**
+ * A background thread that reads blocks into the buffer pool
+ * ahead of their use.
+ * Scans announce the blocks they are about to read by calling
+ * {@link BufferMgr#prefetch(BlockId, int)}, which queues
+ * the requests here. The thread reads each requested block
+ * into a free buffer, unless the block is already in the pool,
+ * lies beyond the end of its file, or no buffer is available.
+ * Requests that do not fit in the queue are dropped,
+ * since read-ahead is only a hint.
+ */
+class Prefetcher extends Thread {
+   private static final int MAX_REQUESTS = 256;
+   private static final BlockId STOP = new BlockId("", -1); /* the request that stops the thread */
+   private final BufferMgr bm;
+   private final FileMgr fm;
+   private final BlockingQueue<BlockId> requests = new ArrayBlockingQueue<>(MAX_REQUESTS);
+
+   /**
+    * Creates a daemon prefetcher for the specified buffer manager.
+    */
+   Prefetcher(BufferMgr bm, FileMgr fm) {
+      super("simpledb-prefetcher");
+      this.bm = bm;
+      this.fm = fm;
+      setDaemon(true);
+   }
+
+   /**
+    * Queues a request to read the specified block.
+    * @param blk a reference to a disk block
+    * @return false if the queue was full and the request was dropped
+    */
+   boolean request(BlockId blk) {
+      return requests.offer(blk);
+   }
+
+   /**
+    * Stops the prefetcher, dropping its pending requests,
+    * and waits for it to finish.
+    * The prefetcher is not interrupted, since an interrupt
+    * would close the file that it may be reading.
+    */
+   void shutdown() {
+      do {
+         requests.clear();
+      } while (!requests.offer(STOP));
+      boolean interrupted = false;
+      while (isAlive()) {
+         try {
+            join();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * Repeatedly takes a request from the queue, together with
+    * the queued requests for the blocks that follow it,
+    * and reads the whole run of blocks at once.
+    * A request whose blocks cannot be read is reported and
+    * dropped, so that the thread keeps serving the others.
+    */
+   public void run() {
+      try {
+         while (!isInterrupted()) {
+            BlockId blk = requests.take();
+            if (blk == STOP)
+               return;
+            int count = 1;
+            BlockId next;
+            while ((next = requests.peek()) != null && isNext(blk, count, next)) {
+               requests.poll();
+               count++;
+            }
+            try {
+               count = Math.min(count, fm.length(blk.fileName()) - blk.number());
+               if (count > 0)
+                  bm.readAhead(blk, count);
+            }
+            catch(RuntimeException e) {
+               // the blocks will be read when they are pinned
+               System.err.println("read-ahead of " + blk + " failed: " + e.getMessage());
+            }
+         }
+      }
+      catch(InterruptedException e) {
+         // the prefetcher was stopped
+      }
+   }
+
+   private boolean isNext(BlockId blk, int count, BlockId next) {
+      return next.fileName().equals(blk.fileName())
+          && next.number() == blk.number() + count;
+   }
+}
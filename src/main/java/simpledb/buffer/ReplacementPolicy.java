@@ -0,0 +1,62 @@
+package simpledb.buffer;
+
+import java.util.List;
+
+/**
+ * The strategy a shard of the buffer pool uses to choose
+ * which unpinned buffer to replace.
+ * Each shard has its own policy object, and calls it
+ * only while holding the shard's lock, so implementations
+ * need not be thread-safe.
+ * Buffers that have never been assigned to a block are
+ * handed out by the shard itself, and are not seen
+ * by the policy until they are first pinned.
+ */
+public interface ReplacementPolicy {
+   /**
+    * Called when a buffer is about to be pinned,
+    * before its pin count is incremented.
+    * @param buff the pinned buffer
+    * @param hit true if the buffer already held the requested block,
+    *            false if it was just assigned to that block
+    */
+   void pinned(Buffer buff, boolean hit);
+
+   /**
+    * Called instead of {@link #pinned(Buffer, boolean)} when a
+    * buffer whose block was read ahead is pinned for the first time.
+    * The read ahead already counted as the block's first reference,
+    * so this pin must not be treated as a second one.
+    * @param buff the pinned buffer
+    */
+   void pinnedAfterReadAhead(Buffer buff);
+
+   /**
+    * Called when the pin count of a buffer drops to zero,
+    * making it a candidate for replacement.
+    * @param buff the unpinned buffer
+    */
+   void unpinned(Buffer buff);
+
+   /**
+    * Chooses an unpinned buffer to be replaced, and
+    * removes it from the candidates.
+    * @return the buffer to replace, or null if every buffer is pinned
+    */
+   Buffer chooseVictim();
+
+   /**
+    * Called when a buffer returned by {@link #chooseVictim()}
+    * is lent to another shard, so that the policy no longer
+    * keeps track of it.
+    * @param buff the buffer that leaves the shard
+    */
+   void removed(Buffer buff);
+
+   /**
+    * Returns the current candidates, in the order
+    * in which they would be replaced.
+    * @return the unpinned buffers in replacement order
+    */
+   List<Buffer> replacementOrder();
+}
@@ -0,0 +1,32 @@
+package simpledb.buffer;
+
+/**
+ * The replacement policies that a buffer manager can be configured with.
+ */
+public enum ReplacementStrategy {
+   /** Replace the least recently unpinned buffer. */
+   LRU {
+      ReplacementPolicy newPolicy(int capacity) {
+         return new LruPolicy();
+      }
+   },
+   /** Sweep a clock hand over the buffers, giving referenced buffers a second chance. */
+   CLOCK {
+      ReplacementPolicy newPolicy(int capacity) {
+         return new ClockPolicy(capacity);
+      }
+   },
+   /** The scan-resistant 2Q policy of Johnson and Shasha. */
+   TWO_Q {
+      ReplacementPolicy newPolicy(int capacity) {
+         return new TwoQueuePolicy(capacity);
+      }
+   };
+
+   /**
+    * Creates a policy object for a shard having the specified number of buffers.
+    * @param capacity the number of buffers in the shard
+    * @return a new replacement policy
+    */
+   abstract ReplacementPolicy newPolicy(int capacity);
+}
@@ -0,0 +1,47 @@
+package simpledb.buffer;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+
+public class ReplacementTest {
+   public static void main(String[] args) throws Exception {
+      for (ReplacementStrategy strategy : ReplacementStrategy.values()) {
+         SimpleDB db = new SimpleDB("replacementtest", 400, 8, strategy);
+         BufferMgr bm = db.bufferMgr();
+         System.out.println(strategy + ":");
+
+         // blocks 0 and 1 are used repeatedly
+         for (int i = 0; i < 3; i++) {
+            touch(bm, 0); touch(bm, 1);
+            touch(bm, 10 + i); // evicts a block of the first round
+         }
+         touch(bm, 0); touch(bm, 1);
+
+         // then a scan reads 20 other blocks once each
+         for (int i = 100; i < 120; i++)
+            touch(bm, i);
+         bm.printStatus();
+
+         // and another scan reads them ahead of their use
+         FileMgr fm = db.fileMgr();
+         while (fm.length("testfile") < 140)
+            fm.append("testfile");
+         for (int i = 120; i < 140; i++) {
+            if (i % 4 == 0) {
+               bm.prefetch(new BlockId("testfile", i), 4);
+               Thread.sleep(10);
+            }
+            touch(bm, i);
+         }
+         bm.printStatus();
+         System.out.println(bm.stats());
+         System.out.println();
+         db.close();
+      }
+   }
+
+   private static void touch(BufferMgr bm, int blknum) {
+      Buffer buff = bm.pin(new BlockId("testfile", blknum));
+      bm.unpin(buff);
+   }
+}
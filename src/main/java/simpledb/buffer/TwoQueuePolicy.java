@@ -0,0 +1,109 @@
+package simpledb.buffer;
+
+import java.util.*;
+import simpledb.file.BlockId;
+
+/**
+ * A variant of the 2Q replacement policy of Johnson and Shasha.
+ * A block read into the pool for the first time enters the
+ * FIFO queue A1in. A block is admitted to the main queue Am,
+ * which is managed as an LRU list, only when it is pinned again:
+ * either while it is still in A1in, or after it was replaced
+ * but while its block id is still remembered in the bounded
+ * A1out queue.
+ * Blocks touched once by a sequential scan therefore pass
+ * through A1in without displacing the frequently used
+ * blocks held in Am.
+ * All operations take constant time.
+ */
+class TwoQueuePolicy implements ReplacementPolicy {
+   private final int maxA1in, maxA1out;
+   private final LinkedHashSet<Buffer> a1inUnpinned = new LinkedHashSet<>();
+   private final LinkedHashSet<Buffer> amUnpinned = new LinkedHashSet<>();
+   private final Set<Buffer> inAm = new HashSet<>();
+   private final LinkedHashSet<BlockId> a1out = new LinkedHashSet<>();
+   private int a1inSize = 0; /* the number of buffers in A1in, pinned or not */
+
+   /**
+    * Creates the queues for a shard having the specified number of buffers.
+    * A1in is allowed a quarter of the buffers, and A1out
+    * remembers as many blocks as half the buffers.
+    * @param capacity the number of buffers in the shard
+    */
+   TwoQueuePolicy(int capacity) {
+      maxA1in  = Math.max(1, capacity / 4);
+      maxA1out = Math.max(1, capacity / 2);
+   }
+
+   public void pinned(Buffer buff, boolean hit) {
+      if (hit) {
+         a1inUnpinned.remove(buff);
+         amUnpinned.remove(buff);
+         if (inAm.add(buff)) // promote it to Am
+            a1inSize--;
+      }
+      else if (a1out.remove(buff.block()))
+         inAm.add(buff); // a re-referenced block
+      else
+         a1inSize++;
+   }
+
+   public void pinnedAfterReadAhead(Buffer buff) {
+      a1inUnpinned.remove(buff); // it stays in A1in
+      amUnpinned.remove(buff);
+   }
+
+   public void unpinned(Buffer buff) {
+      if (inAm.contains(buff))
+         amUnpinned.add(buff);
+      else
+         a1inUnpinned.add(buff);
+   }
+
+   public Buffer chooseVictim() {
+      if ((a1inSize > maxA1in || amUnpinned.isEmpty()) && !a1inUnpinned.isEmpty())
+         return evictFromA1in();
+      else if (!amUnpinned.isEmpty()) {
+         Buffer buff = removeFirst(amUnpinned);
+         inAm.remove(buff);
+         return buff;
+      }
+      else
+         return null;
+   }
+
+   public void removed(Buffer buff) {
+      // chooseVictim already removed it from its queue
+   }
+
+   public List<Buffer> replacementOrder() {
+      List<Buffer> order = new ArrayList<>();
+      if (a1inSize > maxA1in) {
+         order.addAll(a1inUnpinned);
+         order.addAll(amUnpinned);
+      }
+      else {
+         order.addAll(amUnpinned);
+         order.addAll(a1inUnpinned);
+      }
+      return order;
+   }
+
+   private Buffer evictFromA1in() {
+      Buffer buff = removeFirst(a1inUnpinned);
+      a1inSize--;
+      if (buff.block() == null) // its block could not be read ahead
+         return buff;
+      a1out.add(buff.block());
+      if (a1out.size() > maxA1out)
+         removeFirst(a1out);
+      return buff;
+   }
+
+   private static <T> T removeFirst(Set<T> queue) {
+      Iterator<T> iter = queue.iterator();
+      T first = iter.next();
+      iter.remove();
+      return first;
+   }
+}
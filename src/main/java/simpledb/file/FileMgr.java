@@ -1,17 +1,61 @@
 package simpledb.file;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * The file manager reads and writes blocks using positional
+ * channel I/O, so it holds no lock while reading or writing
+ * a single block, and reads and writes of different blocks
+ * can proceed in parallel.
+ * Operations that depend on the position of a file's channel
+ * (the multi-block reads and writes) or on its length (append)
+ * lock only the file they use.
+ * Files are opened in "rw" mode, so a write is not durable
+ * until {@link #force(String)} is called on its file;
+ * the log and recovery managers do so at commit and checkpoint.
+ * <p>
+ * Optionally, the file manager reads blocks through read-only
+ * memory mappings of the files. A page that is read this way
+ * uses a slice of the mapping as its contents, so nothing is
+ * copied until the page is modified. Writes always use the
+ * channel, whose changes the mapping sees. Temporary files
+ * and the log are never mapped, and a block past the end of a mapping is
+ * read through the channel while its file is still being
+ * extended by {@link #append(String)}; the file is remapped
+ * at a later read, once it has stopped growing.
+ */
 public class FileMgr {
    private File dbDirectory;
    private int blocksize;
    private boolean isNew;
-   private Map<String,RandomAccessFile> openFiles = new HashMap<>();
+   private Map<String,RandomAccessFile> openFiles = new ConcurrentHashMap<>();
+   private Set<String> unforced = ConcurrentHashMap.newKeySet(); /* files written since their last force */
+   private boolean mapped;
+   private Map<String,MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+   private Map<String,Long> lastAppends = new ConcurrentHashMap<>(); /* time of each file's latest append */
+   private static final long REMAP_DELAY = 1000; /* milliseconds without appends before a file is remapped */
 
    public FileMgr(File dbDirectory, int blocksize) {
+      this(dbDirectory, blocksize, false);
+   }
+
+   /**
+    * Creates a file manager that optionally reads
+    * blocks through memory mappings of the files.
+    * @param dbDirectory the database directory
+    * @param blocksize the block size
+    * @param mapped true if reads should use memory mappings
+    */
+   public FileMgr(File dbDirectory, int blocksize, boolean mapped) {
       this.dbDirectory = dbDirectory;
       this.blocksize = blocksize;
+      this.mapped = mapped;
       isNew = !dbDirectory.exists();
 
       // create the directory if the database is new
@@ -24,36 +68,123 @@ public class FileMgr {
          		new File(dbDirectory, filename).delete();
    }
 
-   public synchronized void read(BlockId blk, Page p) {
+   public void read(BlockId blk, Page p) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.getChannel().read(p.contents());
+         if (mapped && readMapped(blk, new Page[] {p}))
+            return;
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
+      readDirect(blk, p);
    }
 
-   public synchronized void write(BlockId blk, Page p) {
+   /**
+    * Reads the block through the channel into the page's
+    * own contents, even if reads use memory mappings.
+    * The log reads its blocks this way, since it keeps
+    * appending to the pages that it reads.
+    * @param blk the block to read
+    * @param p the page to read the block into
+    */
+   public void readDirect(BlockId blk, Page p) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.getChannel().write(p.contents());
+         FileChannel fc = getFile(blk.fileName()).getChannel();
+         ByteBuffer bb = p.ownContents();
+         long pos = (long) blk.number() * blocksize;
+         while (bb.hasRemaining()) {
+            int n = fc.read(bb, pos + bb.position());
+            if (n < 0)
+               break; // the block is past the end of the file
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read block " + blk);
+      }
+   }
+
+   public void write(BlockId blk, Page p) {
+      try {
+         FileChannel fc = getFile(blk.fileName()).getChannel();
+         ByteBuffer bb = p.contents();
+         long pos = (long) blk.number() * blocksize;
+         while (bb.hasRemaining())
+            fc.write(bb, pos + bb.position());
+         written(blk.fileName());
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
       }
    }
 
-   public synchronized BlockId append(String filename) {
-      int newblknum = length(filename);
-      BlockId blk = new BlockId(filename, newblknum);
-      byte[] b = new byte[blocksize];
+   /**
+    * Reads consecutive blocks into the specified pages
+    * with a single scatter read.
+    * Page i receives the contents of the block
+    * whose number is blk.number()+i.
+    * @param blk the first block to read
+    * @param pages the pages to read the blocks into
+    */
+   public void read(BlockId blk, Page[] pages) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.write(b);
+         if (mapped && readMapped(blk, pages))
+            return;
+         FileChannel fc = getFile(blk.fileName()).getChannel();
+         ByteBuffer[] bbs = new ByteBuffer[pages.length];
+         for (int i = 0; i < pages.length; i++)
+            bbs[i] = pages[i].ownContents();
+         synchronized (fc) { // the scatter read uses the channel's position
+            fc.position((long) blk.number() * blocksize);
+            long remaining = (long) pages.length * blocksize;
+            while (remaining > 0) {
+               long n = fc.read(bbs);
+               if (n < 0)
+                  break; // the remaining blocks are past the end of the file
+               remaining -= n;
+            }
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + pages.length + " blocks from " + blk);
+      }
+   }
+
+   /**
+    * Writes the specified pages to the specified blocks.
+    * The blocks must be sorted by file name and block number.
+    * Each run of consecutive blocks of the same file
+    * is written with a single gather write.
+    * @param blks the blocks to write, in sorted order
+    * @param pages the pages to write, one per block
+    */
+   public void write(BlockId[] blks, Page[] pages) {
+      int start = 0;
+      while (start < blks.length) {
+         int end = start + 1;
+         while (end < blks.length
+               && blks[end].fileName().equals(blks[start].fileName())
+               && blks[end].number() == blks[end-1].number() + 1)
+            end++;
+         writeRun(blks[start], Arrays.copyOfRange(pages, start, end));
+         start = end;
+      }
+   }
+
+   public BlockId append(String filename) {
+      BlockId blk = null;
+      try {
+         RandomAccessFile f = getFile(filename);
+         synchronized (f) { // computing the new block number and extending the file are atomic
+            int newblknum = (int)(f.length() / blocksize);
+            blk = new BlockId(filename, newblknum);
+            ByteBuffer b = ByteBuffer.allocate(blocksize);
+            long pos = (long) newblknum * blocksize;
+            while (b.hasRemaining())
+               f.getChannel().write(b, pos + b.position());
+         }
+         written(filename);
+         if (mapped)
+            lastAppends.put(filename, System.currentTimeMillis());
       }
       catch (IOException e) {
          throw new RuntimeException("cannot append block" + blk);
@@ -61,6 +192,34 @@ public class FileMgr {
       return blk;
    }
 
+   /**
+    * Forces the blocks written to the specified file,
+    * together with the file's length, to disk.
+    * Temporary files are never forced,
+    * since they are deleted at startup anyway.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      if (filename.startsWith("temp"))
+         return;
+      try {
+         unforced.remove(filename); // a write that happens from now on marks it again
+         getFile(filename).getChannel().force(true);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot force " + filename);
+      }
+   }
+
+   /**
+    * Forces every file that has been written
+    * since it was last forced.
+    */
+   public void forceAll() {
+      for (String filename : unforced)
+         force(filename);
+   }
+
    public int length(String filename) {
       try {
          RandomAccessFile f = getFile(filename);
@@ -71,6 +230,51 @@ public class FileMgr {
       }
    }
 
+   /**
+    * Returns the names of the files of the database
+    * whose names start with the specified prefix, in sorted order.
+    * @param prefix the beginning of the names
+    * @return the names of the matching files
+    */
+   public List<String> fileNames(String prefix) {
+      List<String> names = new ArrayList<>();
+      for (String filename : dbDirectory.list())
+         if (filename.startsWith(prefix))
+            names.add(filename);
+      Collections.sort(names);
+      return names;
+   }
+
+   /**
+    * Closes the specified file and removes it from the database
+    * directory, either deleting it or, if an archive directory
+    * is given, moving it there.
+    * The caller must ensure that the file is no longer used.
+    * @param filename the name of the file
+    * @param archiveDirectory the directory to move the file to, or null
+    */
+   public void remove(String filename, File archiveDirectory) {
+      try {
+         RandomAccessFile f = openFiles.remove(filename);
+         if (f != null)
+            f.close();
+         mappings.remove(filename);
+         lastAppends.remove(filename);
+         unforced.remove(filename);
+         File file = new File(dbDirectory, filename);
+         if (archiveDirectory == null)
+            Files.deleteIfExists(file.toPath());
+         else {
+            archiveDirectory.mkdirs();
+            Files.move(file.toPath(), new File(archiveDirectory, filename).toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot remove " + filename);
+      }
+   }
+
    public boolean isNew() {
       return isNew;
    }
@@ -79,13 +283,89 @@ public class FileMgr {
       return blocksize;
    }
 
+   /**
+    * Points the specified pages at the slices of the file's
+    * memory mapping that hold the consecutive blocks starting at blk.
+    * The file is (re)mapped if the blocks lie past the end of
+    * its current mapping, unless it has been appended to recently.
+    * @return false if the blocks must be read through the channel instead
+    */
+   private boolean readMapped(BlockId blk, Page[] pages) throws IOException {
+      String filename = blk.fileName();
+      if (filename.startsWith("temp"))
+         return false;
+      long pos = (long) blk.number() * blocksize;
+      long end = pos + (long) pages.length * blocksize;
+      MappedByteBuffer mbb = mappings.get(filename);
+      if (mbb == null || mbb.capacity() < end) {
+         Long appended = lastAppends.get(filename);
+         if (appended != null && System.currentTimeMillis() - appended < REMAP_DELAY)
+            return false; // the file is being extended
+         FileChannel fc = getFile(filename).getChannel();
+         long size = fc.size();
+         if (size < end || size > Integer.MAX_VALUE)
+            return false;
+         mbb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+         mappings.put(filename, mbb);
+      }
+      for (int i = 0; i < pages.length; i++) {
+         ByteBuffer slice = mbb.duplicate();
+         slice.position((int) pos + i * blocksize);
+         slice.limit((int) pos + (i+1) * blocksize);
+         pages[i].setMapped(slice.slice());
+      }
+      return true;
+   }
+
+   private void written(String filename) {
+      if (!filename.startsWith("temp"))
+         unforced.add(filename);
+   }
+
+   private void writeRun(BlockId blk, Page[] pages) {
+      try {
+         FileChannel fc = getFile(blk.fileName()).getChannel();
+         ByteBuffer[] bbs = contents(pages);
+         synchronized (fc) { // the gather write uses the channel's position
+            fc.position((long) blk.number() * blocksize);
+            long remaining = (long) pages.length * blocksize;
+            while (remaining > 0)
+               remaining -= fc.write(bbs);
+         }
+         written(blk.fileName());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + pages.length + " blocks to " + blk);
+      }
+   }
+
+   private ByteBuffer[] contents(Page[] pages) {
+      ByteBuffer[] bbs = new ByteBuffer[pages.length];
+      for (int i = 0; i < pages.length; i++)
+         bbs[i] = pages[i].contents();
+      return bbs;
+   }
+
    private RandomAccessFile getFile(String filename) throws IOException {
       RandomAccessFile f = openFiles.get(filename);
       if (f == null) {
-         File dbTable = new File(dbDirectory, filename);
-         f = new RandomAccessFile(dbTable, "rws");
-         openFiles.put(filename, f);
+         try {
+            f = openFiles.computeIfAbsent(filename, this::openFile);
+         }
+         catch (UncheckedIOException e) {
+            throw e.getCause();
+         }
       }
       return f;
    }
+
+   private RandomAccessFile openFile(String filename) {
+      try {
+         File dbTable = new File(dbDirectory, filename);
+         return new RandomAccessFile(dbTable, "rw");
+      }
+      catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
 }
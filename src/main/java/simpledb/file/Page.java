@@ -4,17 +4,20 @@ import java.nio.ByteBuffer;
 import java.nio.charset.*;
 
 public class Page {
-   private ByteBuffer bb;
+   private ByteBuffer bb;  // the current contents; possibly a read-only slice of a mapped file
+   private ByteBuffer own; // the page's own memory
    public static Charset CHARSET = StandardCharsets.US_ASCII;
 
    // For creating data buffers
    public Page(int blocksize) {
-      bb = ByteBuffer.allocateDirect(blocksize);
+      own = ByteBuffer.allocateDirect(blocksize);
+      bb = own;
    }
    
    // For creating log pages
    public Page(byte[] b) {
-      bb = ByteBuffer.wrap(b);
+      own = ByteBuffer.wrap(b);
+      bb = own;
    }
 
    public int getInt(int offset) {
@@ -22,9 +25,19 @@ public class Page {
    }
 
    public void setInt(int offset, int n) {
+      makeWritable();
       bb.putInt(offset, n);
    }
 
+   public long getLong(int offset) {
+      return bb.getLong(offset);
+   }
+
+   public void setLong(int offset, long n) {
+      makeWritable();
+      bb.putLong(offset, n);
+   }
+
    public byte[] getBytes(int offset) {
       bb.position(offset);
       int length = bb.getInt();
@@ -34,6 +47,7 @@ public class Page {
    }
 
    public void setBytes(int offset, byte[] b) {
+      makeWritable();
       bb.position(offset);
       bb.putInt(b.length);
       bb.put(b);
@@ -54,9 +68,50 @@ public class Page {
       return Integer.BYTES + (strlen * (int)bytesPerChar);
    }
 
+   /**
+    * Copies the contents of this page into the specified page,
+    * which must be at least as large.
+    * @param p the page that receives the contents
+    */
+   public void copyTo(Page p) {
+      ByteBuffer src = bb.duplicate();
+      src.position(0);
+      p.own.position(0);
+      p.own.put(src);
+      p.bb = p.own;
+   }
+
    // a package private method, needed by FileMgr
    ByteBuffer contents() {
       bb.position(0);
       return bb;
    }
+
+   // a package private method, needed by FileMgr to read a block into the page
+   ByteBuffer ownContents() {
+      bb = own;
+      bb.position(0);
+      return bb;
+   }
+
+   // a package private method, needed by FileMgr to let the page
+   // use a read-only slice of a memory-mapped file as its contents
+   void setMapped(ByteBuffer slice) {
+      bb = slice;
+   }
+
+   /**
+    * If the page currently uses a slice of a mapped file,
+    * copy that slice into the page's own memory,
+    * so that the page can be modified.
+    */
+   private void makeWritable() {
+      if (bb != own) {
+         ByteBuffer src = bb.duplicate();
+         src.position(0);
+         own.position(0);
+         own.put(src);
+         bb = own;
+      }
+   }
 }
@@ -0,0 +1,90 @@
+package simpledb.log;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.BlockId;
+import simpledb.record.*;
+import simpledb.tx.Transaction;
+
+/**
+ * Measures the log: the commit throughput of concurrent
+ * transactions with and without the group commit window,
+ * and the number of bytes that updates and inserts log.
+ * Commits are simulated by appending and flushing
+ * records of the size of a COMMIT record, so that only
+ * the log is measured.
+ */
+public class LogBench {
+   private static final int COMMIT_SIZE = 16;  /* bytes in a COMMIT record */
+   private static final int COMMITS = 2000;    /* commits by each thread */
+
+   public static void main(String[] args) throws Exception {
+      SimpleDB.CHECKPOINT_INTERVAL = 0;
+      SimpleDB db = new SimpleDB("logbench", 400, 64);
+      LogMgr lm = db.logMgr();
+
+      System.out.println("Commits per second:");
+      for (long delay : new long[] {0, 200})
+         for (int threads : new int[] {8, 32}) {
+            lm.setGroupCommitDelay(delay);
+            double rate = commitRate(lm, threads);
+            System.out.printf("window %3dus, %2d threads: %6.0f%n", delay, threads, rate);
+         }
+      lm.setGroupCommitDelay(SimpleDB.GROUP_COMMIT_DELAY);
+
+      System.out.println("Bytes of log:");
+      System.out.println("800 single-int updates over 40 blocks: " + updateBytes(db));
+      System.out.println("1000 inserts of two-field rows: " + insertBytes(db));
+      db.close();
+   }
+
+   private static double commitRate(LogMgr lm, int nthreads) throws InterruptedException {
+      Thread[] threads = new Thread[nthreads];
+      for (int i = 0; i < nthreads; i++)
+         threads[i] = new Thread(() -> {
+            for (int j = 0; j < COMMITS; j++)
+               lm.flush(lm.append(new byte[COMMIT_SIZE]));
+         });
+      long start = System.nanoTime();
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+      double secs = (System.nanoTime() - start) / 1e9;
+      return nthreads * COMMITS / secs;
+   }
+
+   private static long updateBytes(SimpleDB db) {
+      Transaction tx = db.newTx();
+      for (int i = 0; i < 40; i++)
+         tx.append("benchfile");
+      tx.commit();
+      long start = db.logMgr().endOfLog();
+      tx = db.newTx();
+      for (int i = 0; i < 800; i++) {
+         BlockId blk = new BlockId("benchfile", i % 40);
+         tx.pin(blk);
+         tx.setInt(blk, 4 * (i / 40), i, true);
+         tx.unpin(blk);
+      }
+      tx.commit();
+      return db.logMgr().endOfLog() - start;
+   }
+
+   private static long insertBytes(SimpleDB db) {
+      Schema sch = new Schema();
+      sch.addIntField("A");
+      sch.addStringField("B", 9);
+      Layout layout = new Layout(sch);
+      long start = db.logMgr().endOfLog();
+      Transaction tx = db.newTx();
+      TableScan ts = new TableScan(tx, "benchtable", layout);
+      for (int i = 0; i < 1000; i++) {
+         ts.insert();
+         ts.setInt("A", i);
+         ts.setString("B", "rec" + i);
+      }
+      ts.close();
+      tx.commit();
+      return db.logMgr().endOfLog() - start;
+   }
+}
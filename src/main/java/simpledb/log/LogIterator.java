@@ -1,40 +1,59 @@
 package simpledb.log;
 
-import java.util.Iterator;
+import java.util.*;
 import simpledb.file.*;
 
 /**
  * A class that provides the ability to move through the
  * records of the log file in reverse order.
- * 
+ * The records of a block are stored left to right after
+ * the block's header, so the iterator first finds the
+ * location of each record in the block, and then returns
+ * them from the last one to the first.
+ *
  * @author Edward Sciore
  */
-class LogIterator implements Iterator<byte[]> {
-   private FileMgr fm;
+public class LogIterator implements Iterator<byte[]> {
+   private LogSegments segments;
    private BlockId blk;
    private Page p;
-   private int currentpos;
-   private int boundary;
+   private List<Integer> positions = new ArrayList<>(); /* the records of the current block */
+   private int currentpos;                              /* the number of those records not yet returned */
 
    /**
     * Creates an iterator for the records in the log file,
     * positioned after the last log record.
     */
-   public LogIterator(FileMgr fm, BlockId blk) {
-      this.fm = fm;
+   LogIterator(LogSegments segments, BlockId blk) {
+      this.segments = segments;
       this.blk = blk;
-      byte[] b = new byte[fm.blockSize()];
+      byte[] b = new byte[segments.blockSize()];
       p = new Page(b);
       moveToBlock(blk);
    }
 
+   /**
+    * Creates an iterator for the records in the log file,
+    * positioned so that the record having the specified LSN
+    * is the next one returned.
+    * Since an LSN is the offset of its record in the log file,
+    * only the block containing the record is read.
+    */
+   LogIterator(LogSegments segments, String logfile, long lsn) {
+      this(segments, new BlockId(logfile, (int) (lsn / segments.blockSize())));
+      int offset = (int) (lsn % segments.blockSize());
+      currentpos = positions.indexOf(offset) + 1;
+      if (currentpos == 0)
+         throw new RuntimeException("no log record at LSN " + lsn);
+   }
+
    /**
     * Determines if the current log record
-    * is the earliest record in the log file.
+    * is the earliest record in the log that is still stored.
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentpos<fm.blockSize() || blk.number()>0;
+      return currentpos>0 || blk.number()>segments.firstBlock();
    }
 
    /**
@@ -45,23 +64,36 @@ class LogIterator implements Iterator<byte[]> {
     * @return the next earliest log record
     */
    public byte[] next() {
-      if (currentpos == fm.blockSize()) {
+      while (currentpos == 0) {
          blk = new BlockId(blk.fileName(), blk.number()-1);
          moveToBlock(blk);
       }
-      byte[] rec = p.getBytes(currentpos);
-      currentpos += Integer.BYTES + rec.length;
-      return rec;
+      currentpos--;
+      return p.getBytes(positions.get(currentpos));
+   }
+
+   /**
+    * Returns the LSN of the record that was
+    * most recently returned by {@link #next()}.
+    * @return the LSN of the current record
+    */
+   public long lsn() {
+      return (long) blk.number() * segments.blockSize() + positions.get(currentpos);
    }
 
    /**
-    * Moves to the specified log block
-    * and positions it at the first record in that block
+    * Moves to the specified log block and finds its records,
+    * and positions the iterator after the last of them
     * (i.e., the most recent one).
     */
    private void moveToBlock(BlockId blk) {
-      fm.read(blk, p);
-      boundary = p.getInt(0);
-      currentpos = boundary;
+      segments.read(blk, p);
+      if (p.getInt(Integer.BYTES) != blk.number())
+         throw new RuntimeException("unrecognized log block " + blk);
+      int end = p.getInt(0);
+      positions.clear();
+      for (int pos = LogMgr.HEADER_SIZE; pos < end; pos += Integer.BYTES + p.getInt(pos))
+         positions.add(pos);
+      currentpos = positions.size();
    }
 }
@@ -1,104 +1,492 @@
 package simpledb.log;
 
-import java.util.Iterator;
+import java.io.File;
+import java.util.concurrent.atomic.*;
 import simpledb.file.*;
 
 /**
- * The log manager, which is responsible for 
- * writing log records into a log file. The tail of 
- * the log is kept in a bytebuffer, which is flushed
- * to disk when needed. 
+ * The log manager, which is responsible for
+ * writing log records into a log file. The tail of
+ * the log is kept in a ring of pages, one per log block,
+ * which are written to disk by a {@link LogWriter}.
+ * <p>
+ * The LSN of a log record is its byte offset in the log,
+ * so a record can be read directly given its LSN; see
+ * {@link #iterator(long)}. The log is stored in segment files
+ * of a fixed size, and the segments that precede the oldest
+ * LSN needed by recovery can be removed; see {@link #truncate(long)}.
+ * Each log block begins with a header,
+ * which holds the offset of the end of the block's records
+ * and the number of the block. Records are stored left to right
+ * after the header, and cannot span blocks.
+ * <p>
+ * Appenders do not lock the log manager. An appender reserves
+ * the space for its record in the page of the current block
+ * by atomically advancing the tail of the log, which consists
+ * of a sequence number and the end of the current page.
+ * It then copies its record into the reserved space, in parallel
+ * with the other appenders, and marks its sequence number as complete.
+ * The completed sequence numbers are published in order, so the log
+ * writer only writes records that follow a contiguous range of completed ones.
+ * <p>
+ * When a record does not fit, the appender seals the page, which
+ * hands it to the writer, and makes the next page of the ring current.
+ * Only this step is synchronized, and an appender therefore waits
+ * for I/O only when every page of the ring is waiting to be written.
+ * <p>
+ * A transaction that calls {@link #flush(long)} does not write
+ * the log itself. Instead, it waits while the writer writes
+ * and forces the log for all of the transactions that are waiting.
  * @author Edward Sciore
  */
 public class LogMgr {
+   public static final int DEFAULT_BUFFER_SIZE = 1 << 20; /* 1 MB */
+   public static final int DEFAULT_SEGMENT_SIZE = 16 << 20; /* 16 MB */
+   static final int HEADER_SIZE = 2 * Integer.BYTES;      /* the end of the records, and the block number */
+   private static final int SEALED = Integer.MAX_VALUE;   /* the end of a sealed page */
+   private static final int COMPLETION_SLOTS = 1024;      /* appends that can be in progress at once; a power of 2 */
    private FileMgr fm;
    private String logfile;
-   private Page logpage;
-   private BlockId currentblk;
-   private int latestLSN = 0;
-   private int lastSavedLSN = 0;
+   private LogSegments segments;
+   private byte[][] buffers;    /* the contents of the pages in the ring */
+   private Page[] ring;
+   private int[] sealedSeqs;    /* the latest sequence number in each sealed page */
+   private int[] sealedEnds;    /* the end of the records in each sealed page */
+   private volatile BlockId currentblk;
+   private final AtomicLong tail = new AtomicLong(); /* the latest sequence number and the current end */
+   private final AtomicIntegerArray completed = new AtomicIntegerArray(COMPLETION_SLOTS);
+   private final AtomicInteger published = new AtomicInteger(); /* every append up to this one is complete */
+   private int nextToWrite;     /* the first block whose sealed page has not been written */
+   private long savedEnd;       /* every record before this LSN is on disk */
+   private boolean flushRequested = false;
+   private int waiting = 0;     /* threads waiting for a flush */
+   private LogWriter writer;
 
    /**
-    * Creates the manager for the specified log file.
+    * Creates the manager for the specified log file,
+    * using a ring of the default size.
     * If the log file does not yet exist, it is created
     * with an empty first block.
     * @param FileMgr the file manager
     * @param logfile the name of the log file
     */
    public LogMgr(FileMgr fm, String logfile) {
+      this(fm, logfile, DEFAULT_BUFFER_SIZE);
+   }
+
+   /**
+    * Creates the manager for the specified log file,
+    * using segments of the default size.
+    * @param FileMgr the file manager
+    * @param logfile the name of the log file
+    * @param buffersize the size of the ring of log pages, in bytes
+    */
+   public LogMgr(FileMgr fm, String logfile, int buffersize) {
+      this(fm, logfile, buffersize, DEFAULT_SEGMENT_SIZE);
+   }
+
+   /**
+    * Creates the manager for the specified log file.
+    * If the log file does not yet exist, it is created
+    * with an empty first block.
+    * The segment size must not change between runs.
+    * @param FileMgr the file manager
+    * @param logfile the name of the log file
+    * @param buffersize the size of the ring of log pages, in bytes
+    * @param segmentsize the size of each segment file of the log, in bytes
+    */
+   public LogMgr(FileMgr fm, String logfile, int buffersize, int segmentsize) {
       this.fm = fm;
       this.logfile = logfile;
-      byte[] b = new byte[fm.blockSize()];
-      logpage = new Page(b);
-      int logsize = fm.length(logfile);
-      if (logsize == 0)
-         currentblk = appendNewBlock();
+      segments = new LogSegments(fm, logfile, segmentsize);
+      int numpages = Math.max(2, buffersize / fm.blockSize());
+      buffers = new byte[numpages][fm.blockSize()];
+      ring = new Page[numpages];
+      for (int i=0; i<numpages; i++)
+         ring[i] = new Page(buffers[i]);
+      sealedSeqs = new int[numpages];
+      sealedEnds = new int[numpages];
+      int logsize = segments.length();
+      BlockId blk;
+      Page p;
+      if (logsize == 0) {
+         blk = new BlockId(logfile, 0);
+         p = pageOf(blk);
+         setHeader(p, blk, HEADER_SIZE);
+         segments.write(new BlockId[] {blk}, new Page[] {p});
+      }
       else {
-         currentblk = new BlockId(logfile, logsize-1);
-         fm.read(currentblk, logpage);
+         blk = new BlockId(logfile, logsize-1);
+         p = pageOf(blk);
+         segments.read(blk, p);
+         if (p.getInt(Integer.BYTES) != blk.number())
+            throw new RuntimeException("unrecognized log block " + blk);
       }
+      currentblk = blk;
+      int end = p.getInt(0);
+      tail.set(tailOf(0, end));
+      savedEnd = lsnOf(blk, end);
+      nextToWrite = blk.number();
+      writer = new LogWriter(this, 0);
+      writer.start();
    }
 
    /**
     * Ensures that the log record corresponding to the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
+    * The calling thread waits for the writer to write the record.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= lastSavedLSN)
-         flush();
+   public synchronized void flush(long lsn) {
+      if (lsn < savedEnd)
+         return;
+      flushRequested = true;
+      writer.request();
+      waiting++;
+      boolean interrupted = false;
+      while (lsn >= savedEnd) {
+         try {
+            wait();
+         }
+         catch(InterruptedException e) {
+            interrupted = true; // the record must still be written
+         }
+      }
+      waiting--;
+      if (interrupted)
+         Thread.currentThread().interrupt();
    }
 
-   public Iterator<byte[]> iterator() {
-      flush();
-      return new LogIterator(fm, currentblk);
+   /**
+    * Writes the log to disk and stops the log writer.
+    * The log manager must not be used afterwards.
+    */
+   public void close() {
+      flush(endOfLog() - 1);
+      writer.shutdown();
    }
 
    /**
-    * Appends a log record to the log buffer. 
-    * The record consists of an arbitrary array of bytes. 
-    * Log records are written right to left in the buffer.
+    * Sets the group commit window: flushes requested within
+    * the window are satisfied by a single write of the log.
+    * @param delay the maximum time that a commit waits
+    *              for other commits, in microseconds;
+    *              0 disables the window
+    */
+   public void setGroupCommitDelay(long delay) {
+      writer.setDelay(delay);
+   }
+
+   /**
+    * Returns an iterator over the records of the log,
+    * starting at the latest record and moving backwards.
+    * The log is flushed first.
+    * @return an iterator positioned after the latest record
+    */
+   public synchronized LogIterator iterator() {
+      flush(endOfLog() - 1);
+      return new LogIterator(segments, currentblk);
+   }
+
+   /**
+    * Returns an iterator over the records of the log,
+    * starting at the record having the specified LSN and
+    * moving backwards. Only the blocks from that record
+    * to the start of the log are read.
+    * @param lsn the LSN of a log record
+    * @return an iterator whose first record has the specified LSN
+    */
+   public LogIterator iterator(long lsn) {
+      flush(lsn);
+      return new LogIterator(segments, logfile, lsn);
+   }
+
+   /**
+    * Removes the segments of the log all of whose records
+    * precede the specified LSN, which must be no later than
+    * the oldest record that recovery could need.
+    * The segment holding the LSN is kept, as are the segments
+    * that have not yet been written.
+    * @param lsn the oldest LSN that must be kept
+    * @return the number of segments removed
+    */
+   public int truncate(long lsn) {
+      long saved;
+      synchronized(this) {
+         saved = savedEnd;
+      }
+      return segments.truncate((int) (Math.min(lsn, saved) / fm.blockSize()));
+   }
+
+   /**
+    * Sets the directory to which removed segments are moved.
+    * @param dir the archive directory, or null to delete removed segments
+    */
+   public void setArchiveDirectory(File dir) {
+      segments.setArchiveDirectory(dir);
+   }
+
+   /**
+    * Appends a log record to the log buffer.
+    * The record consists of an arbitrary array of bytes.
+    * Log records are written left to right in the buffer,
+    * following the header.
     * The size of the record is written before the bytes.
-    * The beginning of the buffer contains the location
-    * of the last-written record (the "boundary").
-    * Storing the records backwards makes it easy to read
-    * them in reverse order.
+    * The header of the buffer contains the location
+    * of the end of the records, which the writer sets
+    * when it writes the page.
     * @param logrec a byte buffer containing the bytes.
-    * @return the LSN of the final value
+    * @return the LSN of the record
     */
-   public synchronized int append(byte[] logrec) {
-      int boundary = logpage.getInt(0);
+   public long append(byte[] logrec) {
       int recsize = logrec.length;
       int bytesneeded = recsize + Integer.BYTES;
-      if (boundary - bytesneeded < Integer.BYTES) { // the log record doesn't fit,
-         flush();        // so move to the next block.
-         currentblk = appendNewBlock();
-         boundary = logpage.getInt(0);
+      if (HEADER_SIZE + bytesneeded > fm.blockSize())
+         throw new RuntimeException("log record too large: " + recsize + " bytes");
+      while (true) {
+         long t = tail.get();
+         BlockId blk = currentblk; // read after the tail, see moveToNextBlock
+         int recpos = endOf(t);
+         if (recpos > fm.blockSize() - bytesneeded) { // the log record doesn't fit,
+            moveToNextBlock(blk, bytesneeded);        // so move to the next block.
+            continue;
+         }
+         int seq = seqOf(t) + 1;
+         if (tail.compareAndSet(t, tailOf(seq, recpos + bytesneeded))) {
+            byte[] b = buffers[slotOf(blk)];
+            putInt(b, recpos, recsize);
+            System.arraycopy(logrec, 0, b, recpos + Integer.BYTES, recsize);
+            complete(seq);
+            return lsnOf(blk, recpos);
+         }
       }
-      int recpos = boundary - bytesneeded;
+   }
 
-      logpage.setBytes(recpos, logrec);
-      logpage.setInt(0, recpos); // the new boundary
-      latestLSN += 1;
-      return latestLSN;
+   /**
+    * Writes the pages that are waiting in the ring, and if a flush
+    * was requested, also the page of the current block.
+    * The pages are written outside of the lock, so appenders can
+    * keep filling the ring meanwhile; sealed pages are not modified
+    * until they have been written, and the current page is copied.
+    * Before a page is written, the writer waits for the records
+    * in it to be complete. Called by the log writer.
+    * @return the number of threads that were waiting for the flush
+    */
+   int writeLog() {
+      int first, last, groupsize;
+      long saved = 0;
+      boolean force;
+      long t;
+      BlockId tailblk;
+      synchronized(this) {
+         groupsize = waiting;
+         force = flushRequested;
+         flushRequested = false;
+         first = nextToWrite;
+         do {
+            t = tail.get();
+            tailblk = currentblk;
+         } while (t != tail.get());
+         if (endOf(t) == SEALED) { // an appender is waiting for space in the ring
+            last = tailblk.number();
+            tailblk = null;
+         }
+         else
+            last = tailblk.number() - 1;
+         if (last >= first)
+            saved = lsnOf(new BlockId(logfile, last + 1), 0);
+         if (!force)
+            tailblk = null;
+         else if (tailblk != null)
+            saved = lsnOf(tailblk, endOf(t));
+      }
+      int count = last - first + 1 + (tailblk != null ? 1 : 0);
+      if (count > 0) {
+         BlockId[] blks = new BlockId[count];
+         Page[] pages = new Page[count];
+         for (int i=0; i<=last-first; i++) {
+            int slot = slotOf(first + i);
+            awaitPublished(sealedSeqs[slot]);
+            blks[i] = new BlockId(logfile, first + i);
+            pages[i] = ring[slot];
+            setHeader(pages[i], blks[i], sealedEnds[slot]);
+         }
+         if (tailblk != null) {
+            awaitPublished(seqOf(t));
+            blks[count-1] = tailblk;
+            pages[count-1] = new Page(buffers[slotOf(tailblk)].clone());
+            setHeader(pages[count-1], tailblk, endOf(t));
+         }
+         segments.write(blks, pages); // consecutive blocks, so a single write per segment
+      }
+      if (force)
+         segments.force();
+      synchronized(this) {
+         nextToWrite = Math.max(nextToWrite, last + 1);
+         if (force)
+            savedEnd = Math.max(savedEnd, saved);
+         notifyAll();
+      }
+      return groupsize;
+   }
+
+   /**
+    * Seals the page of the specified block, which hands it to
+    * the writer, and makes the next page of the ring current.
+    * If that page has not yet been written, wait for the writer.
+    * An appender that finds the page already sealed waits until
+    * the next page is current; if the block is no longer current,
+    * or the page has room after all, the method does nothing.
+    * <p>
+    * The new block is made current before the new tail is
+    * published. An appender reads the tail before the current
+    * block, so a successful reservation always refers to the
+    * block that it read.
+    * @param blk the block whose page is full
+    * @param bytesneeded the space needed by the appender
+    */
+   private synchronized void moveToNextBlock(BlockId blk, int bytesneeded) {
+      boolean interrupted = false;
+      long t;
+      while (true) {
+         if (currentblk != blk)
+            return;
+         t = tail.get();
+         if (endOf(t) == SEALED) {
+            try {
+               wait(); // another appender sealed the page
+            }
+            catch(InterruptedException e) {
+               interrupted = true;
+            }
+         }
+         else if (endOf(t) <= fm.blockSize() - bytesneeded)
+            return;
+         else if (tail.compareAndSet(t, tailOf(seqOf(t), SEALED)))
+            break;
+      }
+      int slot = slotOf(blk);
+      sealedSeqs[slot] = seqOf(t);
+      sealedEnds[slot] = endOf(t);
+      BlockId next = new BlockId(logfile, blk.number() + 1);
+      writer.request();
+      while (next.number() - ring.length >= nextToWrite) { // the ring is full
+         try {
+            wait();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+      currentblk = next;
+      tail.set(tailOf(seqOf(t), HEADER_SIZE));
+      notifyAll();
    }
 
    /**
-    * Initialize the bytebuffer and append it to the log file.
+    * Returns the size of the largest record that fits in a log block.
+    * @return the maximum record size, in bytes
     */
-   private BlockId appendNewBlock() {
-      BlockId blk = fm.append(logfile);     
-      logpage.setInt(0, fm.blockSize());
-      fm.write(blk, logpage);
-      return blk;
+   public int maxRecordSize() {
+      return fm.blockSize() - HEADER_SIZE - Integer.BYTES;
+   }
+
+   /**
+    * Returns the LSN that the next record would have
+    * if it were appended to the current block.
+    * Every record appended before the call has a smaller LSN.
+    * @return the LSN of the end of the log
+    */
+   public synchronized long endOfLog() {
+      long t;
+      BlockId blk;
+      do {
+         t = tail.get();
+         blk = currentblk;
+      } while (t != tail.get());
+      int end = endOf(t) == SEALED ? sealedEnds[slotOf(blk)] : endOf(t);
+      return lsnOf(blk, end);
+   }
+
+   /**
+    * Marks the specified append as complete, and publishes
+    * the contiguous range of completed appends that follows
+    * the latest published one.
+    * An appender that gets too far ahead of the published
+    * sequence number waits, so that its completion slot is free.
+    * Sequence numbers wrap around, so they are only compared
+    * by their difference, and a slot is found by masking.
+    */
+   private void complete(int seq) {
+      while (seq - published.get() > COMPLETION_SLOTS) {
+         publish();
+         Thread.yield();
+      }
+      completed.set(seq & (COMPLETION_SLOTS - 1), seq);
+      publish();
+   }
+
+   private void publish() {
+      int p = published.get();
+      while (completed.get((p+1) & (COMPLETION_SLOTS - 1)) == p+1) {
+         published.compareAndSet(p, p+1);
+         p = published.get();
+      }
    }
 
    /**
-    * Write the buffer to the log file.
+    * Waits for the appends up to the specified one to be copied.
+    * The wait is short, because the records were reserved
+    * before the tail was read.
     */
-   private void flush() {
-      fm.write(currentblk, logpage);
-      lastSavedLSN = latestLSN;
+   private void awaitPublished(int seq) {
+      while (published.get() - seq < 0) {
+         publish();
+         Thread.yield();
+      }
+   }
+
+   private Page pageOf(BlockId blk) {
+      return ring[slotOf(blk)];
+   }
+
+   private int slotOf(BlockId blk) {
+      return slotOf(blk.number());
+   }
+
+   private int slotOf(int blknum) {
+      return blknum % ring.length;
+   }
+
+   private long lsnOf(BlockId blk, int offset) {
+      return (long) blk.number() * fm.blockSize() + offset;
+   }
+
+   private static void setHeader(Page p, BlockId blk, int end) {
+      p.setInt(0, end);
+      p.setInt(Integer.BYTES, blk.number());
+   }
+
+   private static long tailOf(int seq, int end) {
+      return ((long) seq << 32) | (end & 0xffffffffL);
+   }
+
+   private static int seqOf(long t) {
+      return (int) (t >>> 32);
+   }
+
+   private static int endOf(long t) {
+      return (int) t;
+   }
+
+   // writes the integer in the same byte order as Page
+   private static void putInt(byte[] b, int pos, int n) {
+      b[pos]   = (byte) (n >>> 24);
+      b[pos+1] = (byte) (n >>> 16);
+      b[pos+2] = (byte) (n >>> 8);
+      b[pos+3] = (byte) n;
    }
 }
@@ -0,0 +1,58 @@
+package simpledb.log;
+
+import java.util.Iterator;
+import simpledb.server.SimpleDB;
+import simpledb.file.Page;
+
+/**
+ * Appends records to the log, reopens the database,
+ * and appends more, with reads through memory mappings.
+ * The records appended after the restart go into the
+ * tail block read from disk, and every record must
+ * be read back intact.
+ */
+public class LogRestartTest {
+   public static void main(String[] args) {
+      SimpleDB.MEMORY_MAPPED = true;
+      SimpleDB db = new SimpleDB("logrestarttest", 400, 8);
+      LogMgr lm = db.logMgr();
+      int before = count(lm);
+      createRecords(lm, 1, 5);
+      db.close();
+
+      db = new SimpleDB("logrestarttest", 400, 8);
+      lm = db.logMgr();
+      createRecords(lm, 6, 55);
+      lm.flush(lm.endOfLog() - 1);
+      int after = count(lm);
+      System.out.println((after - before) + " new records read back (expected 55)");
+      db.close();
+   }
+
+   // Counts the records, printing those that are not intact.
+   private static int count(LogMgr lm) {
+      int n = 0;
+      Iterator<byte[]> iter = lm.iterator();
+      while (iter.hasNext()) {
+         Page p = new Page(iter.next());
+         String s = p.getString(0);
+         int val = p.getInt(Page.maxLength(s.length()));
+         if (!s.equals("record" + (val - 100)))
+            System.out.println("bad record [" + s + ", " + val + "]");
+         n++;
+      }
+      return n;
+   }
+
+   private static void createRecords(LogMgr lm, int start, int end) {
+      for (int i=start; i<=end; i++) {
+         String s = "record" + i;
+         int npos = Page.maxLength(s.length());
+         byte[] b = new byte[npos + Integer.BYTES];
+         Page p = new Page(b);
+         p.setString(0, s);
+         p.setInt(npos, i + 100);
+         lm.append(b);
+      }
+   }
+}
@@ -0,0 +1,152 @@
+package simpledb.log;
+
+import java.io.File;
+import java.util.*;
+import simpledb.file.*;
+
+/**
+ * The segment files that hold the log.
+ * The log is a sequence of blocks, numbered from 0, whose
+ * block ids name the log file; the blocks are stored in
+ * segment files of a fixed number of blocks each, named
+ * after the log file and the number of the segment.
+ * Log block n is thus block n % blocksPerSegment of
+ * segment n / blocksPerSegment.
+ * <p>
+ * Once every record of a segment precedes the oldest LSN
+ * that recovery could need, the segment is removed:
+ * it is deleted, or moved to an archive directory.
+ */
+class LogSegments {
+   private final FileMgr fm;
+   private final String logfile;
+   private final int blocksPerSegment;
+   private volatile int firstSegment = 0;  /* the oldest segment not yet removed */
+   private volatile File archiveDirectory = null;
+   private final Set<String> unforced = new HashSet<>(); /* used only by the log writer */
+
+   /**
+    * Finds the segments of the specified log.
+    * @param fm the file manager
+    * @param logfile the name of the log
+    * @param segmentsize the size of a segment, in bytes
+    */
+   LogSegments(FileMgr fm, String logfile, int segmentsize) {
+      this.fm = fm;
+      this.logfile = logfile;
+      blocksPerSegment = Math.max(1, segmentsize / fm.blockSize());
+      List<String> names = segmentNames();
+      if (!names.isEmpty())
+         firstSegment = segmentOf(names.get(0));
+   }
+
+   /**
+    * Returns the number of blocks in the log,
+    * including those of the removed segments.
+    * @return the number of log blocks
+    */
+   int length() {
+      List<String> names = segmentNames();
+      for (int i = names.size()-1; i >= 0; i--) {
+         int blocks = fm.length(names.get(i));
+         if (blocks > 0)
+            return segmentOf(names.get(i)) * blocksPerSegment + blocks;
+      }
+      return firstSegment * blocksPerSegment;
+   }
+
+   /**
+    * Returns the number of the oldest log block that is still stored.
+    * @return the number of the first log block
+    */
+   int firstBlock() {
+      return firstSegment * blocksPerSegment;
+   }
+
+   int blockSize() {
+      return fm.blockSize();
+   }
+
+   /**
+    * Reads the specified log block. The block is never
+    * read through a memory mapping, since its page may be
+    * the tail of the log, which is appended to in place.
+    */
+   void read(BlockId blk, Page p) {
+      fm.readDirect(segmentBlock(blk), p);
+   }
+
+   /**
+    * Writes the specified consecutive log blocks.
+    * The segment files written are forced by the next call to
+    * {@link #force()}. Called only by the log writer.
+    * @param blks the log blocks, in order
+    * @param pages the pages to write
+    */
+   void write(BlockId[] blks, Page[] pages) {
+      BlockId[] segblks = new BlockId[blks.length];
+      for (int i = 0; i < blks.length; i++) {
+         segblks[i] = segmentBlock(blks[i]);
+         unforced.add(segblks[i].fileName());
+      }
+      fm.write(segblks, pages);
+   }
+
+   /**
+    * Forces the segment files that were written since the last force,
+    * except those that have been removed meanwhile.
+    * Called only by the log writer.
+    */
+   void force() {
+      for (String filename : unforced)
+         if (segmentOf(filename) >= firstSegment)
+            fm.force(filename);
+      unforced.clear();
+   }
+
+   /**
+    * Sets the directory that removed segments are moved to.
+    * @param dir the archive directory, or null to delete the segments
+    */
+   void setArchiveDirectory(File dir) {
+      archiveDirectory = dir;
+   }
+
+   /**
+    * Removes the segments all of whose blocks precede
+    * the specified block.
+    * @param blknum the oldest log block that must be kept
+    * @return the number of segments removed
+    */
+   synchronized int truncate(int blknum) {
+      int removed = 0;
+      while ((firstSegment + 1) * blocksPerSegment <= blknum) {
+         int seg = firstSegment;
+         firstSegment = seg + 1; // iterators stop at the new first block
+         fm.remove(segmentName(seg), archiveDirectory);
+         removed++;
+      }
+      return removed;
+   }
+
+   private List<String> segmentNames() {
+      List<String> names = new ArrayList<>();
+      for (String filename : fm.fileNames(logfile + "."))
+         if (filename.substring(logfile.length() + 1).matches("\\d+"))
+            names.add(filename);
+      return names;
+   }
+
+   private BlockId segmentBlock(BlockId blk) {
+      int seg = blk.number() / blocksPerSegment;
+      return new BlockId(segmentName(seg), blk.number() % blocksPerSegment);
+   }
+
+   private String segmentName(int seg) {
+      return String.format("%s.%06d", logfile, seg);
+   }
+
+   private int segmentOf(String filename) {
+      return Integer.parseInt(filename.substring(logfile.length() + 1));
+   }
+}
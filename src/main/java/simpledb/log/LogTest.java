@@ -15,8 +15,9 @@ public class LogTest {
       System.out.println("done");
       createRecords(1, 35);
       printLogRecords("The log file now has these records:");
-      createRecords(36, 70);
-      lm.flush(65);
+      long lsn = createRecords(36, 65);
+      createRecords(66, 70);
+      lm.flush(lsn);
       printLogRecords("The log file now has these records:");
    }
 
@@ -34,14 +35,17 @@ public class LogTest {
       System.out.println();
    }
 
-   private static void createRecords(int start, int end) {
+   // Returns the LSN of the last record created.
+   private static long createRecords(int start, int end) {
       System.out.print("Creating records: ");
+      long lsn = -1;
       for (int i=start; i<=end; i++) {
          byte[] rec = createLogRecord("record"+i, i+100);
-         int lsn = lm.append(rec);
+         lsn = lm.append(rec);
          System.out.print(lsn + " ");
       }
       System.out.println();
+      return lsn;
    }
 
    // Create a log record having two values: a string and an integer.
@@ -0,0 +1,113 @@
+package simpledb.log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The background thread that writes the log.
+ * Appenders fill the pages of the log manager's ring,
+ * and ask the writer to write a page once it is full.
+ * A transaction that needs the log on disk asks the writer
+ * for a flush and waits; the writer waits a short window
+ * for other requests to arrive, and then writes and forces
+ * the log once on behalf of all of them (group commit).
+ * The cost of the force is thus shared by all of the
+ * transactions that commit within the same window.
+ * The window is skipped when the previous group had a
+ * single member, so that a lone committer is not delayed.
+ */
+class LogWriter extends Thread {
+   private final LogMgr lm;
+   private volatile long delay;
+   private boolean requested = false;
+   private boolean stopped = false;
+
+   /**
+    * Creates a daemon writer for the specified log manager.
+    * @param lm the log manager
+    * @param delay the maximum time that a flush request waits
+    *              for other requests, in microseconds
+    */
+   LogWriter(LogMgr lm, long delay) {
+      super("simpledb-log-writer");
+      this.lm = lm;
+      this.delay = delay;
+      setDaemon(true);
+   }
+
+   /**
+    * Changes the group commit window.
+    * @param delay the new window, in microseconds; 0 disables the window
+    */
+   void setDelay(long delay) {
+      this.delay = delay;
+   }
+
+   /**
+    * Asks the writer to write the log.
+    */
+   synchronized void request() {
+      requested = true;
+      notify();
+   }
+
+   /**
+    * Stops the writer once it has written the log that was
+    * requested, and waits for it to finish.
+    * The writer is not interrupted, since an interrupt
+    * would close the log file that it may be writing.
+    */
+   void shutdown() {
+      synchronized(this) {
+         stopped = true;
+         notify();
+      }
+      boolean interrupted = false;
+      while (isAlive()) {
+         try {
+            join();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   public void run() {
+      try {
+         int groupsize = 1;
+         while (!isInterrupted()) {
+            synchronized(this) {
+               while (!requested && !stopped)
+                  wait();
+               if (!requested)
+                  return;
+               requested = false;
+            }
+            if (groupsize > 1 && delay > 0)
+               awaitGroup();
+            groupsize = lm.writeLog();
+         }
+      }
+      catch(InterruptedException e) {
+         // the writer was stopped
+      }
+   }
+
+   /**
+    * Waits for the window to elapse, so that other committers
+    * can join the group. Thread.sleep rounds short delays up
+    * to a millisecond, so the thread is parked instead.
+    */
+   private void awaitGroup() throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delay);
+      long remaining;
+      while ((remaining = deadline - System.nanoTime()) > 0) {
+         LockSupport.parkNanos(remaining);
+         if (interrupted())
+            throw new InterruptedException();
+      }
+   }
+}
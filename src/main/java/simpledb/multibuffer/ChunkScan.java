@@ -33,6 +33,8 @@ public class ChunkScan implements Scan {
       this.layout = layout;
       this.startbnum = startbnum;
       this.endbnum   = endbnum;
+      // the rest of the chunk is read ahead while the first block is read here
+      tx.prefetch(new BlockId(filename, startbnum+1), endbnum-startbnum);
       for (int i=startbnum; i<=endbnum; i++) {
          BlockId blk = new BlockId(filename, i);
          buffs.add(new RecordPage(tx, blk, layout));
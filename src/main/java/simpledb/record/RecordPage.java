@@ -6,6 +6,9 @@ import simpledb.tx.Transaction;
 
 /**
  * Store a record at a given location in a block. 
+ * The values of a record are read and written under a lock
+ * on that record alone, so that transactions can use
+ * different records of the same block concurrently.
  * @author Edward Sciore
  */
 public class RecordPage {
@@ -29,7 +32,7 @@ public class RecordPage {
     */
    public int getInt(int slot, String fldname) {
       int fldpos = offset(slot) + layout.offset(fldname);
-      return tx.getInt(blk, fldpos);
+      return tx.getInt(blk, slot, fldpos);
    }
 
    /**
@@ -40,7 +43,7 @@ public class RecordPage {
     */
    public String getString(int slot, String fldname) {
       int fldpos = offset(slot) + layout.offset(fldname);
-      return tx.getString(blk, fldpos);
+      return tx.getString(blk, slot, fldpos);
    }
 
    /**
@@ -51,7 +54,7 @@ public class RecordPage {
     */
    public void setInt(int slot, String fldname, int val) {
       int fldpos = offset(slot) + layout.offset(fldname);
-      tx.setInt(blk, fldpos, val, true);
+      tx.setInt(blk, slot, fldpos, val);
    }
 
    /**
@@ -62,7 +65,7 @@ public class RecordPage {
     */
    public void setString(int slot, String fldname, String val) {
       int fldpos = offset(slot) + layout.offset(fldname);
-      tx.setString(blk, fldpos, val, true);
+      tx.setString(blk, slot, fldpos, val);
    }
    
    public void delete(int slot) {
@@ -72,6 +75,8 @@ public class RecordPage {
    /** Use the layout to format a new block of records.
     *  These values should not be logged 
     *  (because the old values are meaningless).
+    *  The block is locked as a whole, since an unlogged
+    *  change can be made durable only by writing the page.
     */ 
    public void format() {
       int slot = 0;
@@ -90,14 +95,39 @@ public class RecordPage {
    }
 
    public int nextAfter(int slot) {
-      return searchAfter(slot, USED);
+      slot++;
+      while (isValidSlot(slot)) {
+         if (tx.getInt(blk, slot, offset(slot)) == USED)
+            return slot;
+         slot++;
+      }
+      return -1;
    }
  
+   /**
+    * Find an empty slot after the specified one and mark it used.
+    * A slot is used only if it can be locked without waiting;
+    * a slot that another transaction has locked may be
+    * emptied by a delete that is not committed, and so
+    * the search goes on instead.
+    * The changes that insert the record, namely the flag and
+    * the fields that the caller then sets, are logged as
+    * a single record; see {@link Transaction#beginBatch(BlockId)}.
+    * @return the new slot, or -1 if there is no empty slot
+    */
    public int insertAfter(int slot) {
-      int newslot = searchAfter(slot, EMPTY);
-      if (newslot >= 0)
-         setFlag(newslot, USED);
-      return newslot;
+      int newslot = slot + 1;
+      while (isValidSlot(newslot)) {
+         if (tx.peekInt(blk, offset(newslot)) == EMPTY
+               && tx.tryXLock(blk, newslot)
+               && tx.getInt(blk, newslot, offset(newslot)) == EMPTY) {
+            tx.beginBatch(blk);
+            setFlag(newslot, USED);
+            return newslot;
+         }
+         newslot++;
+      }
+      return -1;
    }
   
    public BlockId block() {
@@ -110,17 +140,7 @@ public class RecordPage {
     * Set the record's empty/inuse flag.
     */
    private void setFlag(int slot, int flag) {
-      tx.setInt(blk, offset(slot), flag, true); 
-   }
-
-   private int searchAfter(int slot, int flag) {
-      slot++;
-      while (isValidSlot(slot)) {
-         if (tx.getInt(blk, offset(slot)) == flag)
-            return slot;
-         slot++;
-      }
-      return -1;
+      tx.setInt(blk, slot, offset(slot), flag); 
    }
 
    private boolean isValidSlot(int slot) {
@@ -11,6 +11,7 @@ import simpledb.tx.Transaction;
  * @author sciore
  */
 public class TableScan implements UpdateScan {
+   private static final int PREFETCH_DISTANCE = 8; /* how many blocks to read ahead */
    private Transaction tx;
    private Layout layout;
    private RecordPage rp;
@@ -113,11 +114,29 @@ public class TableScan implements UpdateScan {
 
    // Private auxiliary methods
 
+   /**
+    * Moves to the specified block, and asks for the blocks
+    * ahead of it to be read into the buffer pool.
+    * When the scan starts, the next few blocks are requested;
+    * from then on, each move requests the block that many
+    * blocks further on, so that a sequential scan keeps
+    * a constant number of reads in flight.
+    * The read-ahead distance is at most PREFETCH_DISTANCE,
+    * and at most a quarter of the available buffers,
+    * so that a small buffer pool is not flooded.
+    */
    private void moveToBlock(int blknum) {
       close();
       BlockId blk = new BlockId(filename, blknum);
       rp = new RecordPage(tx, blk, layout);
       currentslot = -1;
+      int distance = Math.min(PREFETCH_DISTANCE, tx.availableBuffs() / 4);
+      if (distance == 0)
+         return;
+      if (blknum == 0)
+         tx.prefetch(new BlockId(filename, 1), distance);
+      else
+         tx.prefetch(new BlockId(filename, blknum + distance), 1);
    }
 
    private void moveToNewBlock() {
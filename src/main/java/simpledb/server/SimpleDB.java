@@ -4,7 +4,10 @@ import java.io.File;
 import simpledb.file.FileMgr;
 import simpledb.log.LogMgr;
 import simpledb.buffer.BufferMgr;
+import simpledb.buffer.ReplacementStrategy;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.*;
+import simpledb.tx.concurrency.ConcurrencyMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.plan.*;
 import simpledb.index.planner.IndexUpdatePlanner;
@@ -19,12 +22,24 @@ public class SimpleDB {
    public static int BLOCK_SIZE = 400;
    public static int BUFFER_SIZE = 8;
    public static String LOG_FILE = "simpledb.log";
+   public static ReplacementStrategy REPLACEMENT_STRATEGY = ReplacementStrategy.LRU;
+   public static long PAGE_WRITER_INTERVAL = 100; /* milliseconds; 0 disables the page writer */
+   public static boolean PREFETCH = true;          /* read blocks ahead of sequential scans */
+   public static boolean MEMORY_MAPPED = false;   /* read data and index blocks through memory mappings */
+   public static long GROUP_COMMIT_DELAY = 0;     /* microseconds that a log flush waits for more commits */
+   public static int LOG_BUFFER_SIZE = LogMgr.DEFAULT_BUFFER_SIZE; /* bytes in the ring of log pages */
+   public static int LOG_SEGMENT_SIZE = LogMgr.DEFAULT_SEGMENT_SIZE; /* bytes in each log segment file */
+   public static String LOG_ARCHIVE_DIR = null;   /* where old log segments are moved; null deletes them */
+   public static long CHECKPOINT_INTERVAL = 30000; /* milliseconds; 0 disables background checkpoints */
+   public static int REDO_THREADS = Runtime.getRuntime().availableProcessors(); /* threads of the recovery redo pass */
+   public static int LOCK_ESCALATION_THRESHOLD = 64; /* block locks of a file before locking the whole file; 0 disables */
 
    private  FileMgr     fm;
    private  BufferMgr   bm;
    private  LogMgr      lm;
    private  MetadataMgr mdm;
    private  Planner planner;
+   private  Checkpointer checkpointer = null;
 
    /**
     * A constructor useful for debugging.
@@ -33,10 +48,31 @@ public class SimpleDB {
     * @param buffsize the number of buffers
     */
    public SimpleDB(String dirname, int blocksize, int buffsize) {
+      this(dirname, blocksize, buffsize, REPLACEMENT_STRATEGY);
+   }
+
+   /**
+    * A constructor useful for debugging, which also
+    * chooses the buffer replacement strategy.
+    * @param dirname the name of the database directory
+    * @param blocksize the block size
+    * @param buffsize the number of buffers
+    * @param strategy the buffer replacement strategy
+    */
+   public SimpleDB(String dirname, int blocksize, int buffsize, ReplacementStrategy strategy) {
       File dbDirectory = new File(dirname);
-      fm = new FileMgr(dbDirectory, blocksize);
-      lm = new LogMgr(fm, LOG_FILE);
-      bm = new BufferMgr(fm, lm, buffsize); 
+      fm = new FileMgr(dbDirectory, blocksize, MEMORY_MAPPED);
+      lm = new LogMgr(fm, LOG_FILE, LOG_BUFFER_SIZE, LOG_SEGMENT_SIZE);
+      if (LOG_ARCHIVE_DIR != null)
+         lm.setArchiveDirectory(new File(LOG_ARCHIVE_DIR));
+      lm.setGroupCommitDelay(GROUP_COMMIT_DELAY);
+      RecoveryMgr.setRedoThreads(REDO_THREADS);
+      ConcurrencyMgr.setEscalationThreshold(LOCK_ESCALATION_THRESHOLD);
+      bm = new BufferMgr(fm, lm, buffsize, strategy); 
+      if (PAGE_WRITER_INTERVAL > 0)
+         bm.startPageWriter(PAGE_WRITER_INTERVAL);
+      if (PREFETCH)
+         bm.startPrefetcher();
    }
    
    /**
@@ -54,6 +90,10 @@ public class SimpleDB {
          System.out.println("recovering existing database");
          tx.recover();
       }
+      if (CHECKPOINT_INTERVAL > 0) {
+         checkpointer = new Checkpointer(lm, bm, CHECKPOINT_INTERVAL);
+         checkpointer.start();
+      }
       mdm = new MetadataMgr(isnew, tx);
       QueryPlanner qp = new BasicQueryPlanner(mdm);
       UpdatePlanner up = new BasicUpdatePlanner(mdm);
@@ -63,6 +103,20 @@ public class SimpleDB {
       tx.commit();
    }
    
+   /**
+    * Shuts the database down: stops its background threads,
+    * and writes the dirty buffers and the log to disk.
+    * The database can then be opened again in the same JVM.
+    * The transactions must have finished, and the
+    * object must not be used afterwards.
+    */
+   public void close() {
+      if (checkpointer != null)
+         checkpointer.shutdown();
+      bm.close();
+      lm.close();
+   }
+
    /**
     * A convenient way for clients to create transactions
     * and access the metadata.
@@ -70,6 +124,14 @@ public class SimpleDB {
    public Transaction newTx() {
       return new Transaction(fm, lm, bm);
    }
+
+   /**
+    * Creates a read-only transaction, which reads
+    * a snapshot of the database without locking it.
+    */
+   public Transaction newReadOnlyTx() {
+      return new Transaction(fm, lm, bm, true);
+   }
    
    public MetadataMgr mdMgr() {
       return mdm;
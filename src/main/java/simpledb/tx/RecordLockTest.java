@@ -0,0 +1,84 @@
+package simpledb.tx;
+
+import simpledb.server.SimpleDB;
+import simpledb.record.*;
+
+/**
+ * Two transactions update different records of the same
+ * block at the same time: B receives its lock while A
+ * still holds its own. A then rolls back and B commits,
+ * so only B's change remains in the block.
+ */
+public class RecordLockTest {
+   private static SimpleDB db;
+   private static Layout layout;
+
+   public static void main(String[] args) throws Exception {
+      db = new SimpleDB("recordlocktest", 400, 8);
+      Schema sch = new Schema();
+      sch.addIntField("A");
+      layout = new Layout(sch);
+
+      Transaction tx = db.newTx();
+      TableScan ts = new TableScan(tx, "T", layout);
+      for (int i=0; i<2; i++) {
+         ts.insert();
+         ts.setInt("A", i);
+      }
+      ts.close();
+      tx.commit();
+
+      Thread a = new Thread(new A());
+      Thread b = new Thread(new B());
+      a.start();
+      b.start();
+      a.join();
+      b.join();
+
+      tx = db.newTx();
+      ts = new TableScan(tx, "T", layout);
+      while (ts.next())
+         System.out.print(ts.getRid() + ": " + ts.getInt("A") + " ");
+      System.out.println("(expected [0, 0]: 0 [0, 1]: 200)");
+      ts.close();
+      tx.commit();
+      db.close();
+   }
+
+   static class A implements Runnable {
+      public void run() {
+         try {
+            Transaction txA = db.newTx();
+            TableScan ts = new TableScan(txA, "T", layout);
+            ts.moveToRid(new RID(0, 0));
+            System.out.println("Tx A: request xlock on record 0");
+            ts.setInt("A", 100);
+            System.out.println("Tx A: receive xlock on record 0");
+            Thread.sleep(1000);
+            ts.close();
+            txA.rollback();
+            System.out.println("Tx A: rollback");
+         }
+         catch(InterruptedException e) {};
+      }
+   }
+
+   static class B implements Runnable {
+      public void run() {
+         try {
+            Transaction txB = db.newTx();
+            TableScan ts = new TableScan(txB, "T", layout);
+            Thread.sleep(500);
+            ts.moveToRid(new RID(0, 1));
+            System.out.println("Tx B: request xlock on record 1");
+            ts.setInt("A", 200);
+            System.out.println("Tx B: receive xlock on record 1");
+            Thread.sleep(1000);
+            ts.close();
+            txB.commit();
+            System.out.println("Tx B: commit");
+         }
+         catch(InterruptedException e) {};
+      }
+   }
+}
@@ -0,0 +1,90 @@
+package simpledb.tx;
+
+import java.util.Random;
+import simpledb.server.SimpleDB;
+import simpledb.record.*;
+
+/**
+ * A writer moves amounts between the rows of a table,
+ * committing some of its transactions and rolling back
+ * the others, while read-only transactions sum the rows
+ * again and again. Since each read-only transaction reads
+ * a snapshot, which may begin while a writer's transaction
+ * is active, every sum it computes is the same.
+ */
+public class SnapshotTest {
+   private static SimpleDB db;
+   private static Layout layout;
+   private static volatile boolean done = false;
+
+   public static void main(String[] args) throws Exception {
+      db = new SimpleDB("snapshottest", 400, 8);
+      Schema sch = new Schema();
+      sch.addIntField("A");
+      layout = new Layout(sch);
+
+      Transaction tx = db.newTx();
+      TableScan ts = new TableScan(tx, "T", layout);
+      for (int i=0; i<100; i++) {
+         ts.insert();
+         ts.setInt("A", 100);
+      }
+      ts.close();
+      tx.commit();
+
+      Thread w = new Thread(new Writer());
+      w.start();
+      int reads = 0, wrong = 0;
+      while (!done) {
+         Transaction reader = db.newReadOnlyTx();
+         for (int i=0; i<5; i++) {
+            reads++;
+            if (sum(reader) != 10000)
+               wrong++;
+         }
+         reader.commit();
+         Thread.sleep(10);
+      }
+      w.join();
+      System.out.println("Readers: " + reads + " sums, " + wrong + " different from 10000");
+
+      tx = db.newReadOnlyTx();
+      System.out.println("New reader: sum " + sum(tx) + " (expected 10000)");
+      tx.commit();
+      db.close();
+   }
+
+   private static int sum(Transaction tx) {
+      TableScan ts = new TableScan(tx, "T", layout);
+      int sum = 0;
+      while (ts.next())
+         sum += ts.getInt("A");
+      ts.close();
+      return sum;
+   }
+
+   static class Writer implements Runnable {
+      public void run() {
+         try {
+            Random rnd = new Random(1);
+            for (int i=0; i<20; i++) {
+               Transaction tx = db.newTx();
+               TableScan ts = new TableScan(tx, "T", layout);
+               ts.moveToRid(new RID(0, rnd.nextInt(50)));
+               ts.setInt("A", ts.getInt("A") - 10);
+               Thread.sleep(20);
+               ts.moveToRid(new RID(1, rnd.nextInt(50)));
+               ts.setInt("A", ts.getInt("A") + 10);
+               Thread.sleep(20);
+               ts.close();
+               if (i % 4 == 0)
+                  tx.rollback();
+               else
+                  tx.commit();
+            }
+         }
+         catch(InterruptedException e) {};
+         done = true;
+      }
+   }
+}
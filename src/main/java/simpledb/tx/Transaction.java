@@ -1,5 +1,6 @@
 package simpledb.tx;
 
+import java.util.*;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 import simpledb.buffer.*;
@@ -22,6 +23,8 @@ public class Transaction {
    private final RecoveryMgr recoveryMgr;
    private final ConcurrencyMgr concurMgr;
    private final BufferList mybuffers;
+   private final Snapshot snapshot; /* the snapshot that a read-only transaction reads; null otherwise */
+   private final Map<BlockId,Page> snapshotPages = new HashMap<>();
    
    /**
     * Create a new transaction and its associated 
@@ -36,46 +39,68 @@ public class Transaction {
     * is called first.
     */
    public Transaction(FileMgr fm, LogMgr lm, BufferMgr bm) {
+      this(fm, lm, bm, false);
+   }
+
+   /**
+    * Create a new transaction, which is read-only if specified.
+    * A read-only transaction reads a snapshot of the database
+    * that is taken when it begins, containing the changes of
+    * the transactions committed by then. It obtains no locks,
+    * so it neither waits for the transactions that change the
+    * database nor makes them wait, and it logs nothing.
+    * @param readOnly true if the transaction only reads
+    */
+   public Transaction(FileMgr fm, LogMgr lm, BufferMgr bm, boolean readOnly) {
       txnum = nextTxNumber();
       this.fm = fm;
       this.bm = bm;
-      recoveryMgr = new RecoveryMgr(this, txnum, lm, bm);
+      recoveryMgr = readOnly ? null : new RecoveryMgr(this, txnum, lm, bm);
+      snapshot = readOnly ? new Snapshot(lm, fm.blockSize()) : null;
       concurMgr = new ConcurrencyMgr(txnum); // passing the transaction id
       mybuffers = new BufferList(bm);
    }
    
    /**
     * Commit the current transaction.
-    * Flush all modified buffers (and their log records),
+    * Flush the buffers having unlogged changes,
     * write and flush a commit record to the log,
     * release all locks, and unpin any pinned buffers.
     */
    public void commit() {
-      recoveryMgr.commit();
+      if (snapshot != null)
+         snapshot.close();
+      else
+         recoveryMgr.commit();
       System.out.println("transaction " + txnum + " committed");
       concurMgr.release();
       mybuffers.unpinAll();
+      snapshotPages.clear();
    }
    
    /**
     * Rollback the current transaction.
     * Undo any modified values,
-    * flush those buffers,
     * write and flush a rollback record to the log,
     * release all locks, and unpin any pinned buffers.
     */
    public void rollback() {
-      recoveryMgr.rollback();
+      if (snapshot != null)
+         snapshot.close();
+      else
+         recoveryMgr.rollback();
       System.out.println("transaction " + txnum + " rolled back");
       concurMgr.release();
       mybuffers.unpinAll();
+      snapshotPages.clear();
    }
    
    /**
     * Flush all modified buffers.
-    * Then go through the log, rolling back all
+    * Then go through the log, redoing the changes
+    * that may not be on disk and rolling back all
     * uncommitted transactions.  Finally, 
-    * write a quiescent checkpoint record to the log.
+    * take a checkpoint.
     * This method is called during system startup,
     * before user transactions begin.
     */
@@ -100,7 +125,25 @@ public class Transaction {
     * @param blk a reference to the disk block
     */
    public void unpin(BlockId blk) {
+      if (recoveryMgr != null)
+         recoveryMgr.endBatch();
       mybuffers.unpin(blk);
+      if (mybuffers.getBuffer(blk) == null)
+         snapshotPages.remove(blk);
+   }
+   
+   /**
+    * Ask the buffer manager to read the specified number
+    * of consecutive blocks, starting with the specified block,
+    * into the buffer pool ahead of their use.
+    * No locks are obtained and nothing is pinned,
+    * since the blocks are only brought into memory;
+    * the transaction must still pin and lock them to use them.
+    * @param blk a reference to the first disk block
+    * @param count the number of blocks
+    */
+   public void prefetch(BlockId blk, int count) {
+      bm.prefetch(blk, count);
    }
    
    /**
@@ -113,9 +156,9 @@ public class Transaction {
     * @return the integer stored at that offset
     */
    public int getInt(BlockId blk, int offset) {
-      concurMgr.sLock(blk);
-      Buffer buff = mybuffers.getBuffer(blk);
-      return buff.contents().getInt(offset);
+      if (snapshot == null)
+         concurMgr.sLock(blk);
+      return readInt(blk, offset);
    }
    
    /**
@@ -128,9 +171,57 @@ public class Transaction {
     * @return the string stored at that offset
     */
    public String getString(BlockId blk, int offset) {
-      concurMgr.sLock(blk);
-      Buffer buff = mybuffers.getBuffer(blk);
-      return buff.contents().getString(offset);
+      if (snapshot == null)
+         concurMgr.sLock(blk);
+      return readString(blk, offset);
+   }
+
+   /**
+    * Return the integer value stored at the specified offset
+    * of the specified block, which lies in the record
+    * of the specified slot.
+    * The method obtains an SLock on the record only,
+    * so that other transactions can use the other
+    * records of the block meanwhile.
+    * @param blk a reference to a disk block
+    * @param slot the slot of the record
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getInt(BlockId blk, int slot, int offset) {
+      if (snapshot == null)
+         concurMgr.sLock(blk, slot);
+      return readInt(blk, offset);
+   }
+
+   /**
+    * Return the string value stored at the specified offset
+    * of the specified block, which lies in the record
+    * of the specified slot.
+    * The method obtains an SLock on the record only.
+    * @param blk a reference to a disk block
+    * @param slot the slot of the record
+    * @param offset the byte offset within the block
+    * @return the string stored at that offset
+    */
+   public String getString(BlockId blk, int slot, int offset) {
+      if (snapshot == null)
+         concurMgr.sLock(blk, slot);
+      return readString(blk, offset);
+   }
+
+   /**
+    * Return the integer value stored at the specified
+    * offset of the specified block, without obtaining a lock.
+    * The value may have been written by a transaction that
+    * has not committed, so the caller must lock the value
+    * and read it again before relying on it.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int peekInt(BlockId blk, int offset) {
+      return readInt(blk, offset);
    }
    
    /**
@@ -140,21 +231,17 @@ public class Transaction {
     * It then reads the current value at that offset,
     * puts it into an update log record, and 
     * writes that record to the log.
-    * Finally, it calls the buffer to store the value,
-    * passing in the LSN of the log record and the transaction's id. 
+    * Finally, it calls the buffer to store the value.
+    * A change that is not logged marks the buffer as modified
+    * without an LSN.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setInt(BlockId blk, int offset, int val, boolean okToLog) {
+      checkWritable();
       concurMgr.xLock(blk);
-      Buffer buff = mybuffers.getBuffer(blk);
-      int lsn = -1;
-      if (okToLog)
-         lsn = recoveryMgr.setInt(buff, offset, val);
-      Page p = buff.contents();
-      p.setInt(offset, val);
-      buff.setModified(txnum, lsn);
+      writeInt(blk, offset, val, okToLog);
    }
    
    /**
@@ -164,21 +251,78 @@ public class Transaction {
     * It then reads the current value at that offset,
     * puts it into an update log record, and 
     * writes that record to the log.
-    * Finally, it calls the buffer to store the value,
-    * passing in the LSN of the log record and the transaction's id. 
+    * Finally, it calls the buffer to store the value.
+    * A change that is not logged marks the buffer as modified
+    * without an LSN.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setString(BlockId blk, int offset, String val, boolean okToLog) {
+      checkWritable();
       concurMgr.xLock(blk);
-      Buffer buff = mybuffers.getBuffer(blk);
-      int lsn = -1;
-      if (okToLog)
-         lsn = recoveryMgr.setString(buff, offset, val);
-      Page p = buff.contents();
-      p.setString(offset, val);
-      buff.setModified(txnum, lsn);
+      writeString(blk, offset, val, okToLog);
+   }
+
+   /**
+    * Store an integer at the specified offset of the
+    * specified block, which lies in the record of the
+    * specified slot, and log the change.
+    * The method obtains an XLock on the record only,
+    * so that other transactions can use the other
+    * records of the block meanwhile.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setInt(BlockId blk, int slot, int offset, int val) {
+      checkWritable();
+      concurMgr.xLock(blk, slot);
+      writeInt(blk, offset, val, true);
+   }
+
+   /**
+    * Store a string at the specified offset of the
+    * specified block, which lies in the record of the
+    * specified slot, and log the change.
+    * The method obtains an XLock on the record only.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setString(BlockId blk, int slot, int offset, String val) {
+      checkWritable();
+      concurMgr.xLock(blk, slot);
+      writeString(blk, offset, val, true);
+   }
+
+   /**
+    * Obtain an XLock on the record of the specified slot
+    * of the block, but only if no other transaction
+    * has a conflicting lock. A transaction uses it to claim
+    * an empty slot, and looks for another slot if it fails.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the transaction holds the XLock
+    */
+   public boolean tryXLock(BlockId blk, int slot) {
+      checkWritable();
+      return concurMgr.tryXLock(blk, slot);
+   }
+
+   /**
+    * Batch the logged changes to the specified block that follow,
+    * so that they are written to the log as a single record.
+    * The batch ends when the transaction logs a change to another
+    * block, unpins a block, begins another batch, commits or rolls back.
+    * The block must be pinned by the transaction.
+    * @param blk a reference to the disk block
+    */
+   public void beginBatch(BlockId blk) {
+      checkWritable();
+      recoveryMgr.beginBatch(mybuffers.getBuffer(blk));
    }
 
    /**
@@ -186,12 +330,16 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * A read-only transaction obtains no lock; the blocks
+    * appended since its snapshot read as they were before,
+    * namely without records.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
    public int size(String filename) {
       BlockId dummyblk = new BlockId(filename, END_OF_FILE);
-      concurMgr.sLock(dummyblk);
+      if (snapshot == null)
+         concurMgr.sLock(dummyblk);
       return fm.length(filename);
    }
    
@@ -204,6 +352,7 @@ public class Transaction {
     * @return a reference to the newly-created disk block
     */
    public BlockId append(String filename) {
+      checkWritable();
       BlockId dummyblk = new BlockId(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk);
       return fm.append(filename);
@@ -217,6 +366,94 @@ public class Transaction {
       return bm.available();
    }
    
+   // Private auxiliary methods
+
+   /**
+    * The page is latched while it is read or changed,
+    * since other transactions may be using other
+    * records of the block at the same time.
+    * A read-only transaction reads its snapshot of the page instead.
+    */
+   private int readInt(BlockId blk, int offset) {
+      if (snapshot != null)
+         return snapshotPage(blk).getInt(offset);
+      Buffer buff = mybuffers.getBuffer(blk);
+      buff.latch();
+      try {
+         return buff.contents().getInt(offset);
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   private String readString(BlockId blk, int offset) {
+      if (snapshot != null)
+         return snapshotPage(blk).getString(offset);
+      Buffer buff = mybuffers.getBuffer(blk);
+      buff.latch();
+      try {
+         return buff.contents().getString(offset);
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   private void writeInt(BlockId blk, int offset, int val, boolean okToLog) {
+      Buffer buff = mybuffers.getBuffer(blk);
+      if (okToLog)
+         recoveryMgr.endOtherBatch(buff);
+      buff.latch();
+      try {
+         if (okToLog)
+            recoveryMgr.setInt(buff, offset, val); // marks the buffer as modified
+         Page p = buff.contents();
+         p.setInt(offset, val);
+         if (!okToLog)
+            buff.setModified(txnum, -1);
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   private void writeString(BlockId blk, int offset, String val, boolean okToLog) {
+      Buffer buff = mybuffers.getBuffer(blk);
+      if (okToLog)
+         recoveryMgr.endOtherBatch(buff);
+      buff.latch();
+      try {
+         if (okToLog)
+            recoveryMgr.setString(buff, offset, val); // marks the buffer as modified
+         Page p = buff.contents();
+         p.setString(offset, val);
+         if (!okToLog)
+            buff.setModified(txnum, -1);
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   /**
+    * The snapshot of a block's page is kept
+    * until the transaction unpins the block.
+    */
+   private Page snapshotPage(BlockId blk) {
+      Page p = snapshotPages.get(blk);
+      if (p == null) {
+         p = snapshot.read(mybuffers.getBuffer(blk));
+         snapshotPages.put(blk, p);
+      }
+      return p;
+   }
+
+   private void checkWritable() {
+      if (snapshot != null)
+         throw new RuntimeException("read-only transaction");
+   }
+
    private static synchronized int nextTxNumber() {
       nextTxNum++;
       return nextTxNum;
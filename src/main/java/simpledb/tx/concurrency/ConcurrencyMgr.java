@@ -2,24 +2,37 @@ package simpledb.tx.concurrency;
 
 import java.util.*;
 import simpledb.file.BlockId;
+import static simpledb.tx.concurrency.LockTable.*;
 
 /**
  * The concurrency manager for the transaction.
- * Each transaction has its own concurrency manager. 
- * The concurrency manager keeps track of which locks the 
+ * Each transaction has its own concurrency manager.
+ * The concurrency manager keeps track of which locks the
  * transaction currently has, and interacts with the
- * global lock table as needed. 
+ * global lock table as needed.
+ * <p>
+ * Locks are hierarchical: a file, which stands for its table,
+ * contains blocks, and a block contains records, which are
+ * identified by their slots. Before locking a block or record,
+ * the transaction obtains intention locks on its ancestors.
+ * Once the transaction holds more than a threshold number of
+ * block and record locks of a file, it tries to escalate them
+ * to a single lock on the file, so that a large scan ends up
+ * holding one lock.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
+   private static final int WHOLE_FILE = -2; /* the block number denoting a file's lock */
+   private static int escalationThreshold = 64;
    private final int txnum;
 
    /**
-    * The global lock table. This variable is static because 
+    * The global lock table. This variable is static because
     * all transactions share the same table.
     */
    private static final LockTable locktbl = new LockTable();
-   private final Map<BlockId, String> locks  = new HashMap<>();
+   private final Map<Object, Integer> locks  = new HashMap<>();
+   private final Map<String, Integer> fineLocks = new HashMap<>(); /* the block and record locks of each file */
 
    /**
     * Constructor: Creates a Concurency manager
@@ -29,32 +42,115 @@ public class ConcurrencyMgr {
       this.txnum = txnum;
    }
 
+   /**
+    * Sets the number of block and record locks of a file that a
+    * transaction holds before it tries to lock the whole file instead.
+    * @param threshold the number of locks; 0 disables escalation
+    */
+   public static void setEscalationThreshold(int threshold) {
+      escalationThreshold = threshold;
+   }
+
    /**
     * Obtain an SLock on the block, if necessary.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no lock covering that block,
+    * after obtaining an IS lock on the block's file.
     * @param blk a reference to the disk block
     */
    public void sLock(BlockId blk) {
-      if (locks.get(blk) == null) { // avoid acquiring a duplicate lock
-         locktbl.sLock(blk, txnum);
-         locks.put(blk, "S");
-      }
+      if (covers(locks.get(blk), S)) // avoid acquiring a duplicate lock
+         return;
+      BlockId file = new BlockId(blk.fileName(), WHOLE_FILE);
+      if (covers(locks.get(file), S))
+         return;
+      lock(file, IS);
+      lock(blk, S);
+      escalateIfNeeded(blk.fileName());
    }
 
    /**
     * Obtain an XLock on the block, if necessary.
-    * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * If the transaction has no lock covering the block,
+    * then the method obtains an IX lock on the block's file,
+    * and then an XLock on the block, upgrading its SLock if any.
     * @param blk a reference to the disk block
     */
    public void xLock(BlockId blk) {
-      if (!hasXLock(blk)) { // avoid acquiring a duplicate lock
-         sLock(blk);
-         locktbl.xLock(blk, txnum);
-         locks.put(blk, "X");
-      }
+      if (covers(locks.get(blk), X)) // avoid acquiring a duplicate lock
+         return;
+      BlockId file = new BlockId(blk.fileName(), WHOLE_FILE);
+      if (covers(locks.get(file), X))
+         return;
+      lock(file, IX);
+      lock(blk, X);
+      escalateIfNeeded(blk.fileName());
+   }
+
+   /**
+    * Obtain an SLock on the record in the specified slot
+    * of the block, if necessary.
+    * If the transaction has no lock covering the record,
+    * then the method obtains IS locks on the block's file
+    * and on the block, and then an SLock on the record.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void sLock(BlockId blk, int slot) {
+      RecordId rec = new RecordId(blk, slot);
+      if (covers(locks.get(rec), S) || covers(locks.get(blk), S))
+         return;
+      BlockId file = new BlockId(blk.fileName(), WHOLE_FILE);
+      if (covers(locks.get(file), S))
+         return;
+      lock(file, IS);
+      lock(blk, IS);
+      lock(rec, S);
+      escalateIfNeeded(blk.fileName());
+   }
+
+   /**
+    * Obtain an XLock on the record in the specified slot
+    * of the block, if necessary.
+    * If the transaction has no lock covering the record,
+    * then the method obtains IX locks on the block's file
+    * and on the block, and then an XLock on the record.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    */
+   public void xLock(BlockId blk, int slot) {
+      RecordId rec = new RecordId(blk, slot);
+      if (covers(locks.get(rec), X) || covers(locks.get(blk), X))
+         return;
+      BlockId file = new BlockId(blk.fileName(), WHOLE_FILE);
+      if (covers(locks.get(file), X))
+         return;
+      lock(file, IX);
+      lock(blk, IX);
+      lock(rec, X);
+      escalateIfNeeded(blk.fileName());
+   }
+
+   /**
+    * Obtain an XLock on the record in the specified slot
+    * of the block, but only if the locks can be granted
+    * without waiting. A transaction uses it to claim an
+    * empty slot, since it can look for another one instead.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record
+    * @return true if the transaction holds the XLock
+    */
+   public boolean tryXLock(BlockId blk, int slot) {
+      RecordId rec = new RecordId(blk, slot);
+      if (covers(locks.get(rec), X) || covers(locks.get(blk), X))
+         return true;
+      BlockId file = new BlockId(blk.fileName(), WHOLE_FILE);
+      if (covers(locks.get(file), X))
+         return true;
+      if (!tryLock(file, IX) || !tryLock(blk, IX) || !tryLock(rec, X))
+         return false;
+      escalateIfNeeded(blk.fileName());
+      return true;
    }
 
    /**
@@ -62,13 +158,146 @@ public class ConcurrencyMgr {
     * unlock each one.
     */
    public void release() {
-      for (BlockId blk : locks.keySet()) 
-         locktbl.unlock(blk, txnum);
+      for (Object res : locks.keySet())
+         locktbl.unlock(res, txnum);
       locks.clear();
+      fineLocks.clear();
+   }
+
+   private void lock(Object res, int mode) {
+      Integer held = locks.get(res);
+      if (covers(held, mode))
+         return;
+      locktbl.lock(res, txnum, mode);
+      granted(res, held, mode);
+   }
+
+   private boolean tryLock(Object res, int mode) {
+      Integer held = locks.get(res);
+      if (covers(held, mode))
+         return true;
+      if (!locktbl.tryLock(res, txnum, mode))
+         return false;
+      granted(res, held, mode);
+      return true;
+   }
+
+   private void granted(Object res, Integer held, int mode) {
+      locks.put(res, held == null ? mode : sup(held, mode));
+      if (held == null && !isFile(res))
+         fineLocks.merge(fileName(res), 1, Integer::sum);
+   }
+
+   /**
+    * Tries to replace the block and record locks of the file
+    * by a lock on the whole file, once the transaction holds
+    * as many of them as the threshold: an SLock if the
+    * transaction only reads the file, an XLock if all of the
+    * locks let it change their blocks or records, and an SIX
+    * lock otherwise. An SIX lock covers the locks that read,
+    * and keeps the block and record XLocks, so that other
+    * transactions can still read the rest of the file.
+    * The file lock is obtained only if it is granted without
+    * waiting, since escalation is an optimization and must not
+    * abort the transaction; if it is not, the locks are kept
+    * and escalation is tried again after as many locks more.
+    * The locks that the file lock covers are released.
+    */
+   private void escalateIfNeeded(String filename) {
+      Integer n = fineLocks.get(filename);
+      if (escalationThreshold <= 0 || n == null || n < escalationThreshold)
+         return;
+      BlockId file = new BlockId(filename, WHOLE_FILE);
+      int filemode = locks.get(file);
+      int mode = S;
+      if (filemode == IX || filemode == SIX)
+         mode = onlyChanges(filename) ? X : SIX;
+      if (!locktbl.tryLock(file, txnum, mode)) {
+         fineLocks.put(filename, 0);
+         return;
+      }
+      filemode = sup(filemode, mode);
+      locks.put(file, filemode);
+      int remaining = 0;
+      for (Iterator<Map.Entry<Object, Integer>> iter = locks.entrySet().iterator(); iter.hasNext(); ) {
+         Map.Entry<Object, Integer> e = iter.next();
+         Object res = e.getKey();
+         if (isFile(res) || !fileName(res).equals(filename))
+            continue;
+         if (covers(filemode, access(e.getValue()))) {
+            locktbl.unlock(res, txnum);
+            iter.remove();
+         }
+         else
+            remaining++;
+      }
+      fineLocks.put(filename, remaining);
    }
 
-   private boolean hasXLock(BlockId blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+   /**
+    * Returns true if each of the block and record locks
+    * of the file lets the transaction change what it locks.
+    */
+   private boolean onlyChanges(String filename) {
+      for (Map.Entry<Object, Integer> e : locks.entrySet()) {
+         Object res = e.getKey();
+         if (!isFile(res) && fileName(res).equals(filename) && access(e.getValue()) != X)
+            return false;
+      }
+      return true;
+   }
+
+   /**
+    * Returns true if a lock of the held mode
+    * (which is null if there is no lock)
+    * grants everything that the requested mode does.
+    */
+   private static boolean covers(Integer held, int mode) {
+      return held != null && sup(held, mode) == held;
+   }
+
+   /**
+    * Returns the mode of the lock that a lock of the specified
+    * mode stands for on the resource's descendants:
+    * a lock allows its holder to read them (S) or,
+    * if it is IX, SIX or X, to change them (X).
+    */
+   private static int access(int mode) {
+      return (mode == IS || mode == S) ? S : X;
+   }
+
+   private static boolean isFile(Object res) {
+      return res instanceof BlockId && ((BlockId) res).number() == WHOLE_FILE;
+   }
+
+   private static String fileName(Object res) {
+      if (res instanceof RecordId)
+         return ((RecordId) res).blk.fileName();
+      return ((BlockId) res).fileName();
+   }
+
+   /**
+    * The identifier of a record as a lockable resource,
+    * namely its block and its slot in the block.
+    */
+   private static class RecordId {
+      final BlockId blk;
+      final int slot;
+
+      RecordId(BlockId blk, int slot) {
+         this.blk = blk;
+         this.slot = slot;
+      }
+
+      public boolean equals(Object obj) {
+         if (!(obj instanceof RecordId))
+            return false;
+         RecordId r = (RecordId) obj;
+         return slot == r.slot && blk.equals(r.blk);
+      }
+
+      public int hashCode() {
+         return 31 * blk.hashCode() + slot;
+      }
    }
 }
@@ -1,129 +1,418 @@
 package simpledb.tx.concurrency;
 
 import java.util.*;
-import simpledb.file.BlockId;
+import java.util.concurrent.locks.*;
 
 /**
- * The lock table, which provides methods to lock and unlock blocks.
+ * The lock table, which provides methods to lock and unlock resources,
+ * namely whole files, blocks and records.
+ * A lock has one of the modes IS, IX, S, SIX and X of
+ * multiple-granularity locking: a transaction locks a resource in
+ * mode S or X after locking its parent in mode IS or IX respectively,
+ * while a lock of mode S or X on a resource covers all of its children.
  * If a transaction requests a lock that causes a conflict with an
  * existing lock, then the transaction either waits or is aborted
  * based on the wait-die scheme.
  * Under the wait-die scheme, older transactions wait, while younger
  * transactions are aborted to prevent deadlocks.
- * There is only one wait list for all blocks.
- * When the last lock on a block is released, then all transactions
- * waiting for that block are rescheduled.
- * If a transaction discovers that the lock it is waiting for
- * is still held by an older transaction, it is aborted and rolled back.
+ * <p>
+ * The table is divided into stripes by the hash of the resource,
+ * and each stripe has its own lock, so that requests for
+ * unrelated resources rarely contend with each other.
+ * Each locked resource has an entry holding its lock holders and
+ * a FIFO queue of the transactions waiting for it.
+ * When a lock is released, the waiters at the head of that
+ * resource's queue that can now be granted are granted their locks
+ * and woken up; no other waiting transaction is disturbed.
+ * <p>
+ * Lock entries and waiters hold only primitive fields, and
+ * are kept in a pool of each stripe when they are no longer
+ * used, so that locking a resource usually allocates nothing
+ * besides the entry of the stripe's block map.
  * @author Edward Sciore
  */
 class LockTable {
-   private final Map<BlockId, List<Integer>> locks = new HashMap<>();
-   
+   /** The lock modes of multiple-granularity locking. */
+   static final int IS = 0, IX = 1, S = 2, SIX = 3, X = 4;
+   private static final int NUM_MODES = 5;
+
+   /** COMPATIBLE[m1][m2] is true if locks of modes m1 and m2 can be held together. */
+   private static final boolean[][] COMPATIBLE = {
+      //           IS     IX     S      SIX    X
+      /* IS  */ { true,  true,  true,  true,  false },
+      /* IX  */ { true,  true,  false, false, false },
+      /* S   */ { true,  false, true,  false, false },
+      /* SIX */ { true,  false, false, false, false },
+      /* X   */ { false, false, false, false, false }
+   };
+
+   /** SUP[m1][m2] is the weakest mode that is at least as strong as m1 and m2. */
+   private static final int[][] SUP = {
+      //         IS   IX   S    SIX  X
+      /* IS  */ { IS,  IX,  S,   SIX, X },
+      /* IX  */ { IX,  IX,  SIX, SIX, X },
+      /* S   */ { S,   SIX, S,   SIX, X },
+      /* SIX */ { SIX, SIX, SIX, SIX, X },
+      /* X   */ { X,   X,   X,   X,   X }
+   };
+
+   private static final int NUM_STRIPES = 64;
+   private static final int MAX_POOLED = 64; /* the free entries and waiters kept per stripe */
+   private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+
+   LockTable() {
+      for (int i=0; i<NUM_STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
+
    /**
-    * Grant an SLock on the specified block.
-    * If an XLock exists when the method is called,
+    * Grant a lock of the specified mode on the specified resource.
+    * If the transaction already has a lock on the resource,
+    * the lock is converted to the weakest mode that is
+    * at least as strong as both.
+    * If a lock of another transaction conflicts with the requested
+    * lock, or other transactions are already waiting for the resource,
     * then the calling transaction will either wait or be aborted
     * based on the wait-die scheme.
     * Under the wait-die scheme, older transactions wait,
     * while younger transactions are aborted to prevent deadlocks.
-    * @param blk a reference to the disk block
+    * A transaction that converts its lock waits ahead of the
+    * queued transactions, since they are all waiting for it;
+    * the queued transactions that are younger than it are aborted.
+    * @param res a reference to the locked resource
     * @param txnum the transaction id requesting the lock
+    * @param mode the requested lock mode
     */
-   public synchronized void sLock(BlockId blk, int txnum) { // slock: shared lock (Read-only)
-      while(true) {
-         List<Integer> holders = locks.get(blk);
-         if (holders == null) { // unlock
-            holders = new ArrayList<>();
-            holders.add(txnum);
-            locks.put(blk, holders);
-            break;
-         } else if (hasXlock(holders)) { // xlock
-            int holderTx = -holders.get(0);
-            if (holderTx < txnum)
+   void lock(Object res, int txnum, int mode) {
+      Stripe s = stripeFor(res);
+      s.lock.lock();
+      try {
+         LockEntry e = s.entry(res);
+         boolean convert = e.modeOf(txnum) >= 0;
+         if ((convert || e.head == null) && e.canGrant(txnum, mode)) {
+            e.grant(txnum, mode);
+            return;
+         }
+         int newmode = e.modeOf(txnum) < 0 ? mode : sup(e.modeOf(txnum), mode);
+         for (int i=0; i<e.numHolders; i++)
+            if (e.txs[i] < txnum && !COMPATIBLE[newmode][e.modes[i]])
                throw new LockAbortException(); // die
-            else
-               try {
-                  wait(); // wait
-               } catch (InterruptedException e) {
-                  throw new LockAbortException();
+         Waiter w;
+         if (convert) {
+            for (Waiter other = e.head; other != null; ) {
+               Waiter next = other.next;
+               if (other.txnum > txnum) {
+                  e.remove(other);
+                  other.state = Waiter.ABORTED; // die
+                  other.cond.signal();
                }
-         } else { // slock
-            holders.add(txnum); // compatible
-            break;
+               other = next;
+            }
+            w = s.newWaiter(txnum, mode);
+            e.addFirst(w);
          }
+         else {
+            for (Waiter other = e.head; other != null; other = other.next)
+               if (other.txnum < txnum)
+                  throw new LockAbortException(); // die
+            w = s.newWaiter(txnum, mode);
+            e.addLast(w);
+         }
+         await(s, res, e, w);
+      }
+      finally {
+         s.lock.unlock();
       }
    }
-   
+
    /**
-    * Grant an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling transaction will either wait or be aborted
-    * based on the wait-die scheme.
-    * Under the wait-die scheme, older transactions wait,
-    * while younger transactions are aborted to prevent deadlocks.
-    * @param blk a reference to the disk block
+    * Grant a lock of the specified mode on the specified resource
+    * only if it can be granted without waiting.
+    * @param res a reference to the locked resource
     * @param txnum the transaction id requesting the lock
+    * @param mode the requested lock mode
+    * @return true if the lock was granted
     */
-   synchronized void xLock(BlockId blk, int txnum) { // xlock: Exclusive lock (Write-only)
-      while(true) {
-         List<Integer> holders = locks.get(blk);
-         if (holders == null) { // unlock
-            continue;
-         } else if (hasXlock(holders)) { // xlock
-            int holderTx = -holders.get(0);
-            if (holderTx < txnum)
-               throw new LockAbortException(); // die
-            else
-               try {
-                  wait(); // wait
-               } catch (InterruptedException e) {
-                  throw new LockAbortException();
-               }
-         } else { // slock
-            // upgrade slock to xlock if only held by the same txnum
-            if (holders.size() == 1 && holders.get(0) == txnum) {
-               holders.set(0, -txnum);
-               break;
-            }
+   boolean tryLock(Object res, int txnum, int mode) {
+      Stripe s = stripeFor(res);
+      s.lock.lock();
+      try {
+         LockEntry e = s.entry(res);
+         boolean convert = e.modeOf(txnum) >= 0;
+         if ((convert || e.head == null) && e.canGrant(txnum, mode)) {
+            e.grant(txnum, mode);
+            return true;
+         }
+         s.removeIfUnused(res, e);
+         return false;
+      }
+      finally {
+         s.lock.unlock();
+      }
+   }
 
-            for (int holderTx : holders) {
-               if (holderTx < txnum)
-                  throw new LockAbortException(); // die
+   /**
+    * Release the lock on the specified resource.
+    * The waiting transactions at the head of the resource's queue
+    * that are compatible with the remaining locks are then
+    * granted their locks and notified.
+    * @param res a reference to the locked resource
+    * @param txnum the transaction id releasing the lock
+    */
+   void unlock(Object res, int txnum) {
+      Stripe s = stripeFor(res);
+      s.lock.lock();
+      try {
+         LockEntry e = s.entries.get(res);
+         if (e == null)
+            return;
+         e.release(txnum);
+         grantWaiters(e);
+         s.removeIfUnused(res, e);
+      }
+      finally {
+         s.lock.unlock();
+      }
+   }
+
+   /**
+    * Waits until the waiter is granted its lock, and then
+    * returns the waiter to the stripe's pool.
+    * If the waiter is aborted or its thread is interrupted,
+    * the method throws a LockAbortException.
+    * The caller must hold the stripe's lock.
+    */
+   private void await(Stripe s, Object res, LockEntry e, Waiter w) {
+      try {
+         while (w.state == Waiter.WAITING)
+            w.cond.await();
+      }
+      catch (InterruptedException ex) {
+         if (w.state == Waiter.WAITING) {
+            e.remove(w);
+            grantWaiters(e); // the waiters behind it may now proceed
+            s.removeIfUnused(res, e);
+            s.freeWaiter(w);
+            throw new LockAbortException();
+         }
+         Thread.currentThread().interrupt();
+      }
+      int state = w.state;
+      s.freeWaiter(w);
+      if (state == Waiter.ABORTED)
+         throw new LockAbortException();
+   }
+
+   /**
+    * Grants the locks of the waiters at the head of the queue,
+    * for as long as they are compatible with the current holders,
+    * and wakes up each granted waiter.
+    */
+   private void grantWaiters(LockEntry e) {
+      while (e.head != null) {
+         Waiter w = e.head;
+         if (!e.canGrant(w.txnum, w.mode))
+            break;
+         e.remove(w);
+         e.grant(w.txnum, w.mode);
+         w.state = Waiter.GRANTED;
+         w.cond.signal();
+      }
+   }
+
+   /**
+    * Returns the weakest lock mode that is at least
+    * as strong as both of the specified modes.
+    */
+   static int sup(int m1, int m2) {
+      return SUP[m1][m2];
+   }
+
+   private Stripe stripeFor(Object res) {
+      int h = res.hashCode();
+      h ^= (h >>> 16);
+      return stripes[(h & 0x7fffffff) % NUM_STRIPES];
+   }
+
+   /**
+    * A partition of the lock table, holding the
+    * entries of the resources that hash to it,
+    * and the pools of its unused entries and waiters.
+    */
+   private static class Stripe {
+      final ReentrantLock lock = new ReentrantLock();
+      final Map<Object, LockEntry> entries = new HashMap<>();
+      private LockEntry freeEntries;
+      private int numFreeEntries;
+      private Waiter freeWaiters;
+      private int numFreeWaiters;
+
+      LockEntry entry(Object res) {
+         LockEntry e = entries.get(res);
+         if (e == null) {
+            e = freeEntries;
+            if (e != null) {
+               freeEntries = e.nextFree;
+               e.nextFree = null;
+               numFreeEntries--;
             }
+            else
+               e = new LockEntry();
+            entries.put(res, e);
+         }
+         return e;
+      }
 
-            try {
-               wait(); // wait
-            } catch (InterruptedException e) {
-               throw new LockAbortException();
+      void removeIfUnused(Object res, LockEntry e) {
+         if (e.numHolders == 0 && e.head == null && entries.get(res) == e) {
+            entries.remove(res);
+            if (numFreeEntries < MAX_POOLED) {
+               e.nextFree = freeEntries;
+               freeEntries = e;
+               numFreeEntries++;
             }
          }
       }
+
+      Waiter newWaiter(int txnum, int mode) {
+         Waiter w = freeWaiters;
+         if (w != null) {
+            freeWaiters = w.next;
+            numFreeWaiters--;
+         }
+         else
+            w = new Waiter(lock.newCondition());
+         w.txnum = txnum;
+         w.mode = mode;
+         w.state = Waiter.WAITING;
+         w.prev = w.next = null;
+         return w;
+      }
+
+      void freeWaiter(Waiter w) {
+         if (numFreeWaiters < MAX_POOLED) {
+            w.prev = null;
+            w.next = freeWaiters;
+            freeWaiters = w;
+            numFreeWaiters++;
+         }
+      }
    }
-   
+
    /**
-    * Release a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
-    * @param txnum the transaction id requesting the lock
+    * The locks on a resource: the ids of the holders and
+    * the mode of each one's lock, the number of holders
+    * in each mode, and the queue of waiters, linked through
+    * the waiters themselves.
     */
-   synchronized void unlock(BlockId blk, int txnum) {
-      List<Integer> holders = locks.get(blk);
-      if (hasXlock(holders)) // xlock
-         if (holders.get(0) == -txnum) {
-            locks.remove(blk);
-            notifyAll();
+   private static class LockEntry {
+      int[] txs = new int[4];
+      byte[] modes = new byte[4];
+      int numHolders = 0;
+      final int[] counts = new int[NUM_MODES];
+      Waiter head, tail;
+      LockEntry nextFree; /* the next entry in the stripe's pool */
+
+      /**
+       * Returns the mode of the transaction's lock,
+       * or -1 if it has none.
+       */
+      int modeOf(int txnum) {
+         for (int i=0; i<numHolders; i++)
+            if (txs[i] == txnum)
+               return modes[i];
+         return -1;
+      }
+
+      /**
+       * Returns true if the lock, converted as necessary,
+       * is compatible with the locks of the other holders.
+       */
+      boolean canGrant(int txnum, int mode) {
+         int own = modeOf(txnum);
+         int newmode = (own < 0) ? mode : sup(own, mode);
+         for (int m=0; m<NUM_MODES; m++) {
+            int others = (m == own) ? counts[m] - 1 : counts[m];
+            if (others > 0 && !COMPATIBLE[newmode][m])
+               return false;
          }
-      else { // slock
-         holders.remove((Integer) txnum);
-         if (holders.isEmpty())
-            locks.remove(blk);
-         notifyAll();
+         return true;
+      }
+
+      void grant(int txnum, int mode) {
+         for (int i=0; i<numHolders; i++)
+            if (txs[i] == txnum) {
+               counts[modes[i]]--;
+               modes[i] = (byte) sup(modes[i], mode);
+               counts[modes[i]]++;
+               return;
+            }
+         if (numHolders == txs.length) {
+            txs = Arrays.copyOf(txs, 2 * numHolders);
+            modes = Arrays.copyOf(modes, 2 * numHolders);
+         }
+         txs[numHolders] = txnum;
+         modes[numHolders] = (byte) mode;
+         numHolders++;
+         counts[mode]++;
+      }
+
+      void release(int txnum) {
+         for (int i=0; i<numHolders; i++)
+            if (txs[i] == txnum) {
+               counts[modes[i]]--;
+               numHolders--;
+               txs[i] = txs[numHolders]; // the order of holders is irrelevant
+               modes[i] = modes[numHolders];
+               return;
+            }
+      }
+
+      void addFirst(Waiter w) {
+         w.next = head;
+         if (head != null)
+            head.prev = w;
+         else
+            tail = w;
+         head = w;
+      }
+
+      void addLast(Waiter w) {
+         w.prev = tail;
+         if (tail != null)
+            tail.next = w;
+         else
+            head = w;
+         tail = w;
+      }
+
+      void remove(Waiter w) {
+         if (w.prev != null)
+            w.prev.next = w.next;
+         else
+            head = w.next;
+         if (w.next != null)
+            w.next.prev = w.prev;
+         else
+            tail = w.prev;
+         w.prev = w.next = null;
       }
    }
 
-   private boolean hasXlock(List<Integer> holders) {
-      return holders.get(0) < 0;
+   /**
+    * A transaction waiting for a lock, with the condition
+    * on which it alone is woken up.
+    */
+   private static class Waiter {
+      static final int WAITING = 0, GRANTED = 1, ABORTED = 2;
+      final Condition cond;
+      int txnum;
+      int mode;
+      int state;
+      Waiter prev, next;
+
+      Waiter(Condition cond) {
+         this.cond = cond;
+      }
    }
 }
@@ -0,0 +1,39 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+
+/**
+ * The transactions and snapshots that are active in a database.
+ * Each log has its own table, like its dictionary of file ids,
+ * so that the databases opened in the same JVM do not see
+ * each other's transactions and versions.
+ */
+class Activity {
+   private static final Map<LogMgr,Activity> tables = new WeakHashMap<>();
+
+   /* the recovery managers of the active transactions */
+   final Map<Integer,RecoveryMgr> transactions = new ConcurrentHashMap<>();
+   /* held shared while a transaction finishes, and exclusively while a snapshot is taken */
+   final ReentrantReadWriteLock finishing = new ReentrantReadWriteLock();
+   final Set<Snapshot> snapshots = ConcurrentHashMap.newKeySet();
+   /* the changes logged while snapshots are open, by block and LSN */
+   final Map<BlockId, ConcurrentSkipListMap<Long, Consumer<Page>>> versions
+         = new ConcurrentHashMap<>();
+
+   private Activity() {}
+
+   /**
+    * Returns the table of the specified log,
+    * creating an empty one if the log has none.
+    * @param lm the log manager
+    * @return the table of the log
+    */
+   static synchronized Activity of(LogMgr lm) {
+      return tables.computeIfAbsent(lm, k -> new Activity());
+   }
+}
@@ -0,0 +1,55 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.record.*;
+import simpledb.tx.Transaction;
+
+/**
+ * Inserts rows, whose changes are logged as batches,
+ * and rolls some of them back.
+ */
+public class BatchTest {
+   public static void main(String[] args) throws Exception {
+      SimpleDB db = new SimpleDB("batchtest", 400, 8);
+      Schema sch = new Schema();
+      sch.addIntField("A");
+      sch.addStringField("B", 9);
+      Layout layout = new Layout(sch);
+
+      Transaction tx1 = db.newTx();
+      TableScan ts = new TableScan(tx1, "T", layout);
+      for (int i=0; i<10; i++) {
+         ts.insert();
+         ts.setInt("A", i);
+         ts.setString("B", "rec"+i);
+      }
+      ts.close();
+      tx1.commit();
+
+      // the rows fill several blocks, so several batches are rolled back;
+      // the last one is rolled back before it is logged
+      Transaction tx2 = db.newTx();
+      ts = new TableScan(tx2, "T", layout);
+      ts.next();
+      ts.setInt("A", 1000);
+      for (int i=10; i<40; i++) {
+         ts.insert();
+         ts.setInt("A", i);
+         ts.setString("B", "rec"+i);
+      }
+      tx2.rollback();
+
+      Transaction tx3 = db.newTx();
+      ts = new TableScan(tx3, "T", layout);
+      int count = 0;
+      while (ts.next()) {
+         count++;
+         System.out.print("{" + ts.getInt("A") + ", " + ts.getString("B") + "} ");
+      }
+      System.out.println();
+      System.out.println(count + " records after the rollback; expected 10, from {0, rec0} to {9, rec9}");
+      ts.close();
+      tx3.commit();
+      db.close();
+   }
+}
@@ -1,15 +1,53 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import java.util.*;
+import simpledb.file.*;
 import simpledb.log.LogMgr;
-import simpledb.tx.Transaction;
 
 /**
  * The CHECKPOINT log record.
+ * A checkpoint is fuzzy: it is taken while transactions run,
+ * and records the state of the system at the time it began,
+ * namely the active transactions with the LSN of each one's
+ * latest log record, and the dirty pages with the LSN of
+ * the earliest change to each one that may not be on disk.
+ * These tables may not fit in a single log block, so a
+ * checkpoint consists of one or more CHECKPOINT records
+ * that share the LSN at which the checkpoint began;
+ * the last of them is marked as such, and a checkpoint
+ * without its last record is incomplete.
  * @author Edward Sciore
  */
 public class CheckpointRecord implements LogRecord {
-   public CheckpointRecord() {
+   private long beginLSN;
+   private boolean last;
+   private Map<Integer,Long> activeTxs = new HashMap<>();
+   private Map<BlockId,Long> dirtyPages = new HashMap<>();
+
+   public CheckpointRecord(Page p) {
+      int bpos = Integer.BYTES;
+      beginLSN = p.getLong(bpos);
+      int lpos = bpos + Long.BYTES;
+      last = p.getInt(lpos) != 0;
+      int pos = lpos + Integer.BYTES;
+      int numtxs = p.getInt(pos);
+      pos += Integer.BYTES;
+      for (int i=0; i<numtxs; i++) {
+         int txnum = p.getInt(pos);
+         long lastLSN = p.getLong(pos + Integer.BYTES);
+         activeTxs.put(txnum, lastLSN);
+         pos += Integer.BYTES + Long.BYTES;
+      }
+      int numpages = p.getInt(pos);
+      pos += Integer.BYTES;
+      for (int i=0; i<numpages; i++) {
+         String filename = p.getString(pos);
+         pos += Page.maxLength(filename.length());
+         int blknum = p.getInt(pos);
+         long recLSN = p.getLong(pos + Integer.BYTES);
+         dirtyPages.put(new BlockId(filename, blknum), recLSN);
+         pos += Integer.BYTES + Long.BYTES;
+      }
    }
 
    public int op() {
@@ -24,26 +62,136 @@ public class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
 
+   public long prevLSN() {
+      return -1;
+   }
+
+   /**
+    * Returns the LSN of the end of the log when the checkpoint
+    * began. Every log record that precedes it belongs either to a
+    * transaction in the checkpoint's table of active transactions,
+    * or to a transaction that finished before the checkpoint began.
+    * @return the LSN at which the checkpoint began
+    */
+   public long beginLSN() {
+      return beginLSN;
+   }
+
+   /**
+    * Returns true if this is the last record of its checkpoint.
+    */
+   public boolean isLast() {
+      return last;
+   }
+
+   /**
+    * Returns this record's part of the active transaction table.
+    * @return the transactions, mapped to their latest LSNs
+    */
+   public Map<Integer,Long> activeTxs() {
+      return activeTxs;
+   }
+
+   /**
+    * Returns this record's part of the dirty page table.
+    * @return the dirty blocks, mapped to their recovery LSNs
+    */
+   public Map<BlockId,Long> dirtyPages() {
+      return dirtyPages;
+   }
+
+   /**
+    * Returns null, because a checkpoint record
+    * does not change a block.
+    */
+   public BlockId block() {
+      return null;
+   }
+
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
     */
-   public void undo(Transaction tx) {}
+   public void undo(Page p) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(Page p) {}
 
    public String toString() {
-      return "<CHECKPOINT>";
+      return "<CHECKPOINT " + beginLSN + " " + activeTxs + " " + dirtyPages
+            + (last ? "" : " ...") + ">";
    }
 
-   /** 
-    * A static method to write a checkpoint record to the log.
-    * This log record contains the CHECKPOINT operator,
-    * and nothing else.
-    * @return the LSN of the last log value
+   /**
+    * A static method to write a checkpoint to the log.
+    * Each record contains the CHECKPOINT operator,
+    * the LSN at which the checkpoint began, whether the
+    * record is the last one of the checkpoint, and as many
+    * entries of the two tables as fit in the record.
+    * @return the LSN of the last record of the checkpoint
     */
-   public static int writeToLog(LogMgr lm) {
-      byte[] rec = new byte[Integer.BYTES];
+   public static long writeToLog(LogMgr lm, long beginLSN,
+                                 Map<Integer,Long> activeTxs, Map<BlockId,Long> dirtyPages) {
+      int maxsize = lm.maxRecordSize();
+      Map<Integer,Long> txpart = new HashMap<>();
+      Map<BlockId,Long> pagepart = new HashMap<>();
+      for (Map.Entry<Integer,Long> e : activeTxs.entrySet()) {
+         if (size(txpart, pagepart) + Integer.BYTES + Long.BYTES > maxsize) {
+            writeRecord(lm, beginLSN, false, txpart, pagepart);
+            txpart.clear();
+         }
+         txpart.put(e.getKey(), e.getValue());
+      }
+      for (Map.Entry<BlockId,Long> e : dirtyPages.entrySet()) {
+         int entrysize = Page.maxLength(e.getKey().fileName().length()) + Integer.BYTES + Long.BYTES;
+         if (size(txpart, pagepart) + entrysize > maxsize) {
+            writeRecord(lm, beginLSN, false, txpart, pagepart);
+            txpart.clear();
+            pagepart.clear();
+         }
+         pagepart.put(e.getKey(), e.getValue());
+      }
+      return writeRecord(lm, beginLSN, true, txpart, pagepart);
+   }
+
+   private static long writeRecord(LogMgr lm, long beginLSN, boolean last,
+                                   Map<Integer,Long> activeTxs, Map<BlockId,Long> dirtyPages) {
+      byte[] rec = new byte[size(activeTxs, dirtyPages)];
       Page p = new Page(rec);
       p.setInt(0, CHECKPOINT);
+      int bpos = Integer.BYTES;
+      p.setLong(bpos, beginLSN);
+      int lpos = bpos + Long.BYTES;
+      p.setInt(lpos, last ? 1 : 0);
+      int pos = lpos + Integer.BYTES;
+      p.setInt(pos, activeTxs.size());
+      pos += Integer.BYTES;
+      for (Map.Entry<Integer,Long> e : activeTxs.entrySet()) {
+         p.setInt(pos, e.getKey());
+         p.setLong(pos + Integer.BYTES, e.getValue());
+         pos += Integer.BYTES + Long.BYTES;
+      }
+      p.setInt(pos, dirtyPages.size());
+      pos += Integer.BYTES;
+      for (Map.Entry<BlockId,Long> e : dirtyPages.entrySet()) {
+         BlockId blk = e.getKey();
+         p.setString(pos, blk.fileName());
+         pos += Page.maxLength(blk.fileName().length());
+         p.setInt(pos, blk.number());
+         p.setLong(pos + Integer.BYTES, e.getValue());
+         pos += Integer.BYTES + Long.BYTES;
+      }
       return lm.append(rec);
    }
+
+   private static int size(Map<Integer,Long> activeTxs, Map<BlockId,Long> dirtyPages) {
+      int size = 4 * Integer.BYTES + Long.BYTES; // op, begin, last, and the two counts
+      size += activeTxs.size() * (Integer.BYTES + Long.BYTES);
+      for (BlockId blk : dirtyPages.keySet())
+         size += Page.maxLength(blk.fileName().length()) + Integer.BYTES + Long.BYTES;
+      return size;
+   }
 }
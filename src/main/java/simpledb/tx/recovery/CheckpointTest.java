@@ -0,0 +1,93 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+import simpledb.tx.Transaction;
+
+/**
+ * Run this program twice in the same directory.
+ * The first run commits changes whose pages are never
+ * written, takes a checkpoint while a transaction is active,
+ * and stops as if the system crashed.
+ * The second run recovers: the committed changes are redone
+ * and the active transaction's changes are undone.
+ */
+public class CheckpointTest {
+   private static FileMgr fm;
+   private static SimpleDB db;
+   private static BlockId blk0, blk1;
+
+   public static void main(String[] args) throws Exception {
+      SimpleDB.PAGE_WRITER_INTERVAL = 0; // keep the committed pages in memory
+      db = new SimpleDB("checkpointtest", 400, 8);
+      fm = db.fileMgr();
+      blk0 = new BlockId("testfile", 0);
+      blk1 = new BlockId("testfile", 1);
+
+      if (fm.length("testfile") == 0) {
+         initialize();
+         crash();
+      }
+      else {
+         recover();
+      }
+   }
+
+   private static void initialize() {
+      Transaction tx1 = db.newTx();
+      tx1.pin(blk0);
+      tx1.pin(blk1);
+      for (int pos=0; pos<12; pos+=Integer.BYTES) {
+         tx1.setInt(blk0, pos, 0, false);
+         tx1.setInt(blk1, pos, 0, false);
+      }
+      tx1.commit();
+      printValues("After initialization:");
+   }
+
+   private static void crash() {
+      // committed before the checkpoint
+      Transaction tx2 = db.newTx();
+      tx2.pin(blk0);
+      tx2.setInt(blk0, 0, 100, true);
+      tx2.commit();
+
+      // active during the checkpoint, and never finished
+      Transaction tx3 = db.newTx();
+      tx3.pin(blk1);
+      tx3.setInt(blk1, 0, 200, true);
+      RecoveryMgr.checkpoint(db.logMgr(), db.bufferMgr());
+      tx3.setInt(blk1, 4, 201, true);
+
+      // committed after the checkpoint
+      Transaction tx4 = db.newTx();
+      tx4.pin(blk0);
+      tx4.setInt(blk0, 4, 300, true);
+      tx4.commit();
+
+      printValues("Before the crash:");
+      System.out.println("Expected after recovery:\n100 0 300 0 0 0");
+      Runtime.getRuntime().halt(0);
+   }
+
+   private static void recover() {
+      Transaction tx = db.newTx();
+      tx.recover();
+      printValues("After recovery:");
+      db.close();
+   }
+
+   // Print the values that made it to disk.
+   private static void printValues(String msg) {
+      System.out.println(msg);
+      Page p0 = new Page(fm.blockSize());
+      Page p1 = new Page(fm.blockSize());
+      fm.read(blk0, p0);
+      fm.read(blk1, p1);
+      for (int pos=0; pos<12; pos+=Integer.BYTES) {
+         System.out.print(p0.getInt(pos) + " ");
+         System.out.print(p1.getInt(pos) + " ");
+      }
+      System.out.println();
+   }
+}
@@ -0,0 +1,75 @@
+package simpledb.tx.recovery;
+
+import simpledb.buffer.BufferMgr;
+import simpledb.log.LogMgr;
+
+/**
+ * A background thread that takes a fuzzy checkpoint
+ * every interval, so that recovery needs to read only
+ * the log written since the latest checkpoint began,
+ * together with the records of the transactions
+ * that were active at that time.
+ * The running transactions are not stopped.
+ */
+public class Checkpointer extends Thread {
+   private final LogMgr lm;
+   private final BufferMgr bm;
+   private final long interval;
+   private boolean stopped = false;
+
+   /**
+    * Creates a daemon checkpointer.
+    * It must not be started before recovery completes.
+    * @param lm the log manager
+    * @param bm the buffer manager
+    * @param interval the time between checkpoints, in milliseconds
+    */
+   public Checkpointer(LogMgr lm, BufferMgr bm, long interval) {
+      super("simpledb-checkpointer");
+      this.lm = lm;
+      this.bm = bm;
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   /**
+    * Stops the checkpointer after its current checkpoint,
+    * and waits for it to finish.
+    * The checkpointer is not interrupted, since an interrupt
+    * would close the file that it may be writing.
+    */
+   public void shutdown() {
+      synchronized(this) {
+         stopped = true;
+         notify();
+      }
+      boolean interrupted = false;
+      while (isAlive()) {
+         try {
+            join();
+         }
+         catch(InterruptedException e) {
+            interrupted = true;
+         }
+      }
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   public void run() {
+      try {
+         while (awaitRound()) {
+            RecoveryMgr.checkpoint(lm, bm);
+         }
+      }
+      catch(InterruptedException e) {
+         // the checkpointer was stopped
+      }
+   }
+
+   private synchronized boolean awaitRound() throws InterruptedException {
+      if (!stopped)
+         wait(interval);
+      return !stopped;
+   }
+}
@@ -1,8 +1,7 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import simpledb.file.*;
 import simpledb.log.LogMgr;
-import simpledb.tx.Transaction;
 
 /**
  * The COMMIT log record
@@ -10,10 +9,13 @@ import simpledb.tx.Transaction;
  */
 public class CommitRecord implements LogRecord {
    private int txnum;
+   private long prevLSN;
 
    public CommitRecord(Page p) {
       int tpos = Integer.BYTES;
       txnum = p.getInt(tpos);
+      int ppos = tpos + Integer.BYTES;
+      prevLSN = p.getLong(ppos);
    }
 
    public int op() {
@@ -24,11 +26,29 @@ public class CommitRecord implements LogRecord {
       return txnum;
    }
 
+   public long prevLSN() {
+      return prevLSN;
+   }
+
+   /**
+    * Returns null, because a commit record
+    * does not change a block.
+    */
+   public BlockId block() {
+      return null;
+   }
+
    /**
     * Does nothing, because a commit record
     * contains no undo information.
     */
-   public void undo(Transaction tx) {}
+   public void undo(Page p) {}
+
+   /**
+    * Does nothing, because a commit record
+    * contains no redo information.
+    */
+   public void redo(Page p) {}
 
    public String toString() {
       return "<COMMIT " + txnum + ">";
@@ -37,14 +57,16 @@ public class CommitRecord implements LogRecord {
    /** 
     * A static method to write a commit record to the log.
     * This log record contains the COMMIT operator,
-    * followed by the transaction id.
-    * @return the LSN of the last log value
+    * followed by the transaction id and the LSN
+    * of the transaction's previous log record.
+    * @return the LSN of the log record
     */
-   public static int writeToLog(LogMgr lm, int txnum) {
-      byte[] rec = new byte[2*Integer.BYTES];
+   public static long writeToLog(LogMgr lm, int txnum, long prevLSN) {
+      byte[] rec = new byte[2*Integer.BYTES + Long.BYTES];
       Page p = new Page(rec);
       p.setInt(0, COMMIT);
       p.setInt(Integer.BYTES, txnum);
+      p.setLong(2*Integer.BYTES, prevLSN);
       return lm.append(rec);
    }
 }
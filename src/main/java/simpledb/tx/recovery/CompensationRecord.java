@@ -0,0 +1,162 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+
+/**
+ * The compensation log record (CLR), written when the change
+ * of an update record is undone. The record contains the
+ * values that the undo restored, with their offsets in the
+ * block, which is all that redoing the compensation needs;
+ * a compensation is never itself undone.
+ * Since it omits the values that the undo overwrote, the
+ * record is no larger than the undone one but for a few
+ * bytes of header, so that an update that can be logged
+ * can also be rolled back (see {@link #maxSize(String)}).
+ * The record also holds the LSN of the next record of the
+ * transaction to be undone, so that the undo of a transaction
+ * interrupted by a crash resumes where it stopped.
+ */
+public class CompensationRecord implements LogRecord {
+   /* the operator and the varints of the transaction, LSNs, file, block and count */
+   private static final int MAX_HEADER = Integer.BYTES + 5 + 10 + 10 + 5 + 5 + 5;
+   private int txnum;
+   private long prevLSN, undoNextLSN;
+   private BlockId blk;
+   private List<Integer> offsets = new ArrayList<>();
+   private List<Object> values = new ArrayList<>();
+
+   /**
+    * Create a new compensation log record.
+    * @param rec the bytes of the log record
+    * @param fileids the dictionary of the log's file ids
+    */
+   public CompensationRecord(byte[] rec, FileIds fileids) {
+      RecordReader r = new RecordReader(rec);
+      txnum = (int) r.readVarint();
+      prevLSN = r.readVarint() - 1;
+      undoNextLSN = r.readVarint() - 1;
+      String filename = fileids.nameOf((int) r.readVarint());
+      int blknum = (int) r.readVarint();
+      blk = new BlockId(filename, blknum);
+      int numvals = (int) r.readVarint();
+      for (int i=0; i<numvals; i++) {
+         long tag = r.readVarint();
+         offsets.add((int) (tag >>> 1));
+         if ((tag & 1) == 0)
+            values.add((int) r.readSigned());
+         else
+            values.add(r.readString());
+      }
+   }
+
+   public int op() {
+      return COMPENSATE;
+   }
+
+   public int txNumber() {
+      return txnum;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
+
+   /**
+    * Returns the LSN of the next record of the transaction
+    * to be undone, which is the record preceding the undone one.
+    * @return the LSN of the next record to undo
+    */
+   public long undoNextLSN() {
+      return undoNextLSN;
+   }
+
+   public BlockId block() {
+      return blk;
+   }
+
+   /**
+    * Does nothing, because a compensation is never undone.
+    */
+   public void undo(Page p) {}
+
+   /**
+    * Writes the restored values again, in the order
+    * in which the undo wrote them.
+    */
+   public void redo(Page p) {
+      for (int i=0; i<values.size(); i++) {
+         Object val = values.get(i);
+         if (val instanceof Integer)
+            p.setInt(offsets.get(i), (Integer) val);
+         else
+            p.setString(offsets.get(i), (String) val);
+      }
+   }
+
+   public String toString() {
+      StringBuilder sb = new StringBuilder("<CLR " + txnum + " " + undoNextLSN + " " + blk + " [");
+      for (int i=0; i<values.size(); i++)
+         sb.append(i == 0 ? "" : ", ").append(offsets.get(i)).append(":").append(values.get(i));
+      return sb.append("]>").toString();
+   }
+
+   /**
+    * Returns an upper bound on the size of the compensation
+    * of a change that overwrites the specified string.
+    * A string change is only logged if its compensation fits
+    * in a log record.
+    * @param oldval the string that the change overwrites
+    * @return the size of the compensation, in bytes
+    */
+   static int maxSize(String oldval) {
+      return MAX_HEADER + 5 + 5 + oldval.getBytes(Page.CHARSET).length;
+   }
+
+   /**
+    * A static method to write a compensation record to the log.
+    * This log record contains the COMPENSATE operator,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous log record, the LSN of the next
+    * record to undo, the id of the file, the number of the
+    * block, the number of restored values, and then for each
+    * value its offset and type followed by the value itself.
+    * The values are encoded as in a {@link SetRowRecord}.
+    * @param undone the update record whose change was undone
+    * @return the LSN of the log record
+    */
+   public static long writeToLog(LogMgr lm, int txnum, long prevLSN, long undoNextLSN, LogRecord undone) {
+      List<SetRowRecord.Field> fields = changesOf(undone);
+      BlockId blk = undone.block();
+      int fileid = FileIds.of(lm).idOf(blk.fileName());
+      RecordWriter w = new RecordWriter(COMPENSATE)
+            .writeVarint(txnum)
+            .writeVarint(prevLSN + 1)
+            .writeVarint(undoNextLSN + 1)
+            .writeVarint(fileid)
+            .writeVarint(blk.number())
+            .writeVarint(fields.size());
+      // the undo restores the old values from the latest change to the earliest
+      for (int i = fields.size()-1; i >= 0; i--) {
+         SetRowRecord.Field f = fields.get(i);
+         if (f.oldval instanceof Integer)
+            w.writeVarint((long) f.offset << 1)
+             .writeSigned((Integer) f.oldval);
+         else
+            w.writeVarint(((long) f.offset << 1) | 1)
+             .writeString((String) f.oldval);
+      }
+      return lm.append(w.toBytes());
+   }
+
+   private static List<SetRowRecord.Field> changesOf(LogRecord rec) {
+      if (rec instanceof SetIntRecord)
+         return ((SetIntRecord) rec).changes();
+      if (rec instanceof SetStringRecord)
+         return ((SetStringRecord) rec).changes();
+      if (rec instanceof SetRowRecord)
+         return ((SetRowRecord) rec).changes();
+      throw new RuntimeException("cannot compensate " + rec);
+   }
+}
@@ -0,0 +1,92 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+
+/**
+ * The FILEID log record, which adds an entry to the
+ * dictionary of file ids used by the update records.
+ * @see FileIds
+ */
+public class FileIdRecord implements LogRecord {
+   private int id;
+   private String filename;
+
+   public FileIdRecord(Page p) {
+      int ipos = Integer.BYTES;
+      id = p.getInt(ipos);
+      int fpos = ipos + Integer.BYTES;
+      filename = p.getString(fpos);
+   }
+
+   public int op() {
+      return FILEID;
+   }
+
+   /**
+    * File id records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   public long prevLSN() {
+      return -1;
+   }
+
+   /**
+    * Returns the id of the file.
+    */
+   public int fileId() {
+      return id;
+   }
+
+   /**
+    * Returns the name of the file.
+    */
+   public String fileName() {
+      return filename;
+   }
+
+   /**
+    * Returns null, because a file id record
+    * does not change a block.
+    */
+   public BlockId block() {
+      return null;
+   }
+
+   /**
+    * Does nothing, because a file id record
+    * contains no undo information.
+    */
+   public void undo(Page p) {}
+
+   /**
+    * Does nothing, because a file id record
+    * contains no redo information.
+    */
+   public void redo(Page p) {}
+
+   public String toString() {
+      return "<FILEID " + id + " " + filename + ">";
+   }
+
+   /**
+    * A static method to write a file id record to the log.
+    * This log record contains the FILEID operator,
+    * followed by the id and the name of the file.
+    * @return the LSN of the log record
+    */
+   public static long writeToLog(LogMgr lm, int id, String filename) {
+      int ipos = Integer.BYTES;
+      int fpos = ipos + Integer.BYTES;
+      byte[] rec = new byte[fpos + Page.maxLength(filename.length())];
+      Page p = new Page(rec);
+      p.setInt(0, FILEID);
+      p.setInt(ipos, id);
+      p.setString(fpos, filename);
+      return lm.append(rec);
+   }
+}
@@ -0,0 +1,118 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import simpledb.file.Page;
+import simpledb.log.LogMgr;
+
+/**
+ * The dictionary of file ids, which lets an update record
+ * name its file by a small integer instead of by the file's name.
+ * Each log has its own dictionary, since the ids are
+ * defined by the log's records.
+ * An id is logged by a FILEID record before its first use,
+ * and every checkpoint logs the whole dictionary again after
+ * it begins, so that recovery finds each id it needs
+ * in the log it reads. Recovery loads the dictionary
+ * before any transaction logs an update.
+ */
+class FileIds {
+   private static final Map<LogMgr,FileIds> dictionaries = new WeakHashMap<>();
+   private final LogMgr lm;
+   private final Map<String,Integer> ids = new HashMap<>();
+   private final Map<Integer,String> names = new HashMap<>();
+   private int nextId = 0;
+
+   private FileIds(LogMgr lm) {
+      this.lm = lm;
+   }
+
+   /**
+    * Returns the dictionary of the specified log,
+    * creating an empty one if the log has none.
+    * @param lm the log manager
+    * @return the dictionary of the log
+    */
+   static synchronized FileIds of(LogMgr lm) {
+      return dictionaries.computeIfAbsent(lm, FileIds::new);
+   }
+
+   /**
+    * Returns the id of the specified file,
+    * assigning and logging a new id if it has none.
+    * @param filename the name of the file
+    * @return the id of the file
+    */
+   synchronized int idOf(String filename) {
+      Integer id = ids.get(filename);
+      if (id == null) {
+         id = nextId;
+         FileIdRecord.writeToLog(lm, id, filename);
+         register(id, filename);
+      }
+      return id;
+   }
+
+   /**
+    * Returns the name of the file having the specified id.
+    * @param id the id of a file
+    * @return the name of the file
+    */
+   synchronized String nameOf(int id) {
+      String filename = names.get(id);
+      if (filename == null)
+         throw new RuntimeException("unknown file id " + id);
+      return filename;
+   }
+
+   /**
+    * Adds an entry read from the log to the dictionary.
+    * @param id the id of a file
+    * @param filename the name of the file
+    */
+   synchronized void register(int id, String filename) {
+      ids.put(filename, id);
+      names.put(id, filename);
+      nextId = Math.max(nextId, id + 1);
+   }
+
+   /**
+    * Writes a FILEID record for every entry of the dictionary.
+    */
+   synchronized void logAll() {
+      for (Map.Entry<Integer,String> e : names.entrySet())
+         FileIdRecord.writeToLog(lm, e.getKey(), e.getValue());
+   }
+
+   /**
+    * Interprets the bytes returned by the log iterator.
+    * The update records name their files by ids,
+    * which are looked up in this dictionary.
+    * @param bytes the bytes of a log record
+    * @return the log record, or null if its type is unknown
+    */
+   LogRecord createLogRecord(byte[] bytes) {
+      Page p = new Page(bytes);
+      switch (p.getInt(0)) {
+      case LogRecord.CHECKPOINT: 
+         return new CheckpointRecord(p);
+      case LogRecord.START: 
+         return new StartRecord(p);
+      case LogRecord.COMMIT: 
+         return new CommitRecord(p);
+      case LogRecord.ROLLBACK: 
+         return new RollbackRecord(p);
+      case LogRecord.SETINT: 
+         return new SetIntRecord(bytes, this);
+      case LogRecord.SETSTRING: 
+         return new SetStringRecord(bytes, this);
+      case LogRecord.COMPENSATE:
+         return new CompensationRecord(bytes, this);
+      case LogRecord.FILEID:
+         return new FileIdRecord(p);
+      case LogRecord.SETROW:
+         return new SetRowRecord(bytes, this);
+      default:
+         return null;
+      }
+   }
+}
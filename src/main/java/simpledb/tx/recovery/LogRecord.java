@@ -1,7 +1,6 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
-import simpledb.tx.Transaction;
+import simpledb.file.*;
 
 /**
  * The interface implemented by each type of log record.
@@ -10,7 +9,9 @@ import simpledb.tx.Transaction;
 public interface LogRecord {
    static final int CHECKPOINT = 0, START = 1,
          COMMIT = 2, ROLLBACK  = 3,
-         SETINT = 4, SETSTRING = 5;
+         SETINT = 4, SETSTRING = 5,
+         COMPENSATE = 6, FILEID = 7,
+         SETROW = 8;
 
    /**
     * Returns the log record's type. 
@@ -26,35 +27,34 @@ public interface LogRecord {
    int txNumber();
 
    /**
-    * Undoes the operation encoded by this log record.
+    * Returns the LSN of the previous log record
+    * written by the same transaction, or -1 if there is none.
+    * Following these LSNs from a transaction's latest record
+    * visits exactly the records of that transaction, backwards.
+    * @return the LSN of the transaction's previous log record
+    */
+   long prevLSN();
+
+   /**
+    * Returns the block changed by this log record,
+    * or null if the record does not change a block.
+    * @return the changed block
+    */
+   BlockId block();
+
+   /**
+    * Undoes the operation encoded by this log record
+    * on the specified page, which holds the record's block.
     * The only log record types for which this method
-    * does anything interesting are SETINT and SETSTRING.
-    * @param txnum the id of the transaction that is performing the undo.
+    * does anything interesting are SETINT, SETSTRING and SETROW.
+    * @param p the contents of the changed block
     */
-   void undo(Transaction tx);
+   void undo(Page p);
 
    /**
-    * Interpret the bytes returned by the log iterator.
-    * @param bytes
-    * @return
+    * Redoes the operation encoded by this log record
+    * on the specified page, which holds the record's block.
+    * @param p the contents of the changed block
     */
-   static LogRecord createLogRecord(byte[] bytes) {
-      Page p = new Page(bytes);
-      switch (p.getInt(0)) {
-      case CHECKPOINT: 
-         return new CheckpointRecord();
-      case START: 
-         return new StartRecord(p);
-      case COMMIT: 
-         return new CommitRecord(p);
-      case ROLLBACK: 
-         return new RollbackRecord(p);
-      case SETINT: 
-         return new SetIntRecord(p);
-      case SETSTRING: 
-         return new SetStringRecord(p);
-      default:
-         return null;
-      }
-   }
-}
\ No newline at end of file
+   void redo(Page p);
+}
@@ -8,18 +8,24 @@ import simpledb.log.*;
 public class PrintLogFile {
    public static void main(String[] args) {
       SimpleDB db = new SimpleDB("studentdb", 400, 8);
-      FileMgr fm = db.fileMgr();
       LogMgr lm = db.logMgr();
-      String filename = "simpledb.log";
+      FileIds fileids = FileIds.of(lm);
 
-      int lastblock = fm.length(filename) - 1;
-      BlockId blk = new BlockId(filename, lastblock);
-      Page p = new Page(fm.blockSize());
-      fm.read(blk, p);
+      // the update records name their files by ids,
+      // which are defined by the FILEID records
       Iterator<byte[]> iter = lm.iterator();
+      while (iter.hasNext()) {
+         Page p = new Page(iter.next());
+         if (p.getInt(0) == LogRecord.FILEID) {
+            FileIdRecord rec = new FileIdRecord(p);
+            fileids.register(rec.fileId(), rec.fileName());
+         }
+      }
+
+      iter = lm.iterator();
       while (iter.hasNext()) {
          byte[] bytes = iter.next();
-         LogRecord rec = LogRecord.createLogRecord(bytes);
+         LogRecord rec = fileids.createLogRecord(bytes);
          System.out.println(rec);
       }
    }
@@ -0,0 +1,40 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Page;
+
+/**
+ * Decodes the fields of a compact log record,
+ * in the order in which {@link RecordWriter} wrote them.
+ */
+class RecordReader {
+   private final byte[] buf;
+   private int pos = Integer.BYTES; // after the operator
+
+   RecordReader(byte[] buf) {
+      this.buf = buf;
+   }
+
+   long readVarint() {
+      long val = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = buf[pos++];
+         val |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return val;
+   }
+
+   long readSigned() {
+      long val = readVarint();
+      return (val >>> 1) ^ -(val & 1);
+   }
+
+   String readString() {
+      int len = (int) readVarint();
+      String s = new String(buf, pos, len, Page.CHARSET);
+      pos += len;
+      return s;
+   }
+}
@@ -0,0 +1,76 @@
+package simpledb.tx.recovery;
+
+import java.util.Arrays;
+import simpledb.file.Page;
+
+/**
+ * Encodes the fields of a compact log record.
+ * The record starts with its operator, as a 4-byte integer
+ * like every log record; the other fields are written as
+ * variable-length integers of 7 bits per byte, the high bit
+ * of each byte telling whether another byte follows.
+ * Small values, such as transaction numbers, offsets and
+ * file ids, therefore take one or two bytes.
+ */
+class RecordWriter {
+   private byte[] buf = new byte[32];
+   private int pos = 0;
+
+   /**
+    * Starts a record having the specified operator.
+    * @param op the record's operator
+    */
+   RecordWriter(int op) {
+      Page p = new Page(buf);
+      p.setInt(0, op);
+      pos = Integer.BYTES;
+   }
+
+   /**
+    * Writes a non-negative value in as few bytes as possible.
+    * @param val the value
+    */
+   RecordWriter writeVarint(long val) {
+      ensure(10);
+      while ((val & ~0x7FL) != 0) {
+         buf[pos++] = (byte) ((val & 0x7F) | 0x80);
+         val >>>= 7;
+      }
+      buf[pos++] = (byte) val;
+      return this;
+   }
+
+   /**
+    * Writes a value that may be negative, mapping values of
+    * small magnitude to small unsigned ones (zigzag encoding).
+    * @param val the value
+    */
+   RecordWriter writeSigned(long val) {
+      return writeVarint((val << 1) ^ (val >> 63));
+   }
+
+   /**
+    * Writes a string as its length followed by its bytes.
+    * @param s the string
+    */
+   RecordWriter writeString(String s) {
+      byte[] b = s.getBytes(Page.CHARSET);
+      writeVarint(b.length);
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, pos, b.length);
+      pos += b.length;
+      return this;
+   }
+
+   /**
+    * Returns the bytes of the record.
+    */
+   byte[] toBytes() {
+      return Arrays.copyOf(buf, pos);
+   }
+
+   private void ensure(int n) {
+      if (pos + n > buf.length)
+         buf = Arrays.copyOf(buf, Math.max(2*buf.length, pos + n));
+   }
+}
@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
 import java.util.*;
+import java.util.concurrent.*;
 import simpledb.file.*;
 import simpledb.log.*;
 import simpledb.buffer.*;
@@ -9,120 +10,628 @@ import static simpledb.tx.recovery.LogRecord.*;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * The recovery managers of the active transactions are registered
+ * in a table, from which a checkpoint takes the latest LSN of each
+ * active transaction.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   private static final int REDO_BATCH = 64; /* the fewest records worth a redo thread */
+   private static int redoThreads = Runtime.getRuntime().availableProcessors();
+
    private LogMgr lm;
    private BufferMgr bm;
-   private Transaction tx;
+   private Activity activity; /* the active transactions and snapshots of the database */
    private int txnum;
+   private long firstLSN; /* the LSN of the transaction's START record */
+   private long lastLSN;  /* the LSN of the transaction's latest log record */
+   private final Object batchLock = new Object(); /* guards the batch, which snapshots read */
+   private Buffer batchBuff = null; /* the buffer whose changes are being batched, if any */
+   private List<SetRowRecord.Field> batch = new ArrayList<>();
+   private int batchSize = 0;       /* an upper bound on the size of the batch's record */
 
    /**
     * Create a recovery manager for the specified transaction.
     * @param txnum the ID of the specified transaction
     */
    public RecoveryMgr(Transaction tx, int txnum, LogMgr lm, BufferMgr bm) {
-      this.tx = tx;
       this.txnum = txnum;
       this.lm = lm;
       this.bm = bm;
-      StartRecord.writeToLog(lm, txnum);
+      this.activity = Activity.of(lm);
+      synchronized (this) { // a checkpoint waits for the START record
+         activity.transactions.put(txnum, this);
+         firstLSN = lastLSN = StartRecord.writeToLog(lm, txnum);
+      }
    }
 
    /**
     * Write a commit record to the log, and flushes it to disk.
+    * The transaction's logged changes can be redone from the log,
+    * so their pages stay in the buffer pool; only the pages
+    * having unlogged changes are written.
     */
    public void commit() {
-      bm.flushAll(txnum);
-      int lsn = CommitRecord.writeToLog(lm, txnum);
+      endBatch();
+      bm.flushUnlogged(txnum);
+      long lsn;
+      activity.finishing.readLock().lock();
+      try {
+         synchronized (this) {
+            lsn = lastLSN = CommitRecord.writeToLog(lm, txnum, lastLSN);
+         }
+         activity.transactions.remove(txnum);
+      }
+      finally {
+         activity.finishing.readLock().unlock();
+      }
       lm.flush(lsn);
    }
 
    /**
     * Write a rollback record to the log and flush it to disk.
+    * The batched changes are undone without being logged.
+    * As with a commit, only the pages having unlogged changes
+    * are written.
     */
    public void rollback() {
+      undoBatch();
       doRollback();
-      bm.flushAll(txnum);
-      int lsn = RollbackRecord.writeToLog(lm, txnum);
+      bm.flushUnlogged(txnum);
+      long lsn;
+      activity.finishing.readLock().lock();
+      try {
+         synchronized (this) {
+            lsn = lastLSN = RollbackRecord.writeToLog(lm, txnum, lastLSN);
+         }
+         activity.transactions.remove(txnum);
+      }
+      finally {
+         activity.finishing.readLock().unlock();
+      }
       lm.flush(lsn);
    }
 
    /**
     * Recover uncompleted transactions from the log
-    * and then write a quiescent checkpoint record to the log and flush it.
+    * and then take a checkpoint.
     */
    public void recover() {
+      activity.transactions.remove(txnum);
       doRecover();
       bm.flushAll(txnum);
-      int lsn = CheckpointRecord.writeToLog(lm);
-      lm.flush(lsn);
+      checkpoint(lm, bm);
    }
 
    /**
     * Write a setint record to the log and return its lsn.
+    * The record holds both the old and the new value,
+    * so that the change can be undone or redone.
+    * The buffer is marked as modified by the record,
+    * so that a checkpoint that sees the record as
+    * the transaction's latest also sees the dirty page.
+    * If the changes to the buffer are being batched,
+    * the change is added to the batch instead, and
+    * the method returns -1.
     * @param buff the buffer containing the page
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public synchronized long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.contents().getInt(offset);
+      SetRowRecord.Field f = new SetRowRecord.Field(offset, oldval, newval);
+      if (addToBatch(buff, f))
+         return -1;
       BlockId blk = buff.block();
-      return SetIntRecord.writeToLog(lm, txnum, blk, offset, oldval);
+      lastLSN = SetIntRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+      if (Snapshot.anyOpen(activity))
+         Snapshot.recordChange(activity, blk, lastLSN, Snapshot.undoing(Collections.singletonList(f)));
+      buff.setModified(txnum, lastLSN);
+      return lastLSN;
    }
 
    /**
     * Write a setstring record to the log and return its lsn.
+    * The buffer is marked as modified by the record.
+    * If the changes to the buffer are being batched,
+    * the change is added to the batch instead, and
+    * the method returns -1.
+    * A change whose compensation would not fit in a log
+    * record is rejected, since it could not be rolled back.
     * @param buff the buffer containing the page
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public synchronized long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.contents().getString(offset);
+      if (CompensationRecord.maxSize(oldval) > lm.maxRecordSize())
+         throw new RuntimeException("cannot log a change to a string of "
+               + oldval.length() + " characters");
+      SetRowRecord.Field f = new SetRowRecord.Field(offset, oldval, newval);
+      if (addToBatch(buff, f))
+         return -1;
       BlockId blk = buff.block();
-      return SetStringRecord.writeToLog(lm, txnum, blk, offset, oldval);
+      lastLSN = SetStringRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+      if (Snapshot.anyOpen(activity))
+         Snapshot.recordChange(activity, blk, lastLSN, Snapshot.undoing(Collections.singletonList(f)));
+      buff.setModified(txnum, lastLSN);
+      return lastLSN;
    }
 
    /**
-    * Rollback the transaction, by iterating
-    * through the log records until it finds 
-    * the transaction's START record,
-    * calling undo() for each of the transaction's
-    * log records.
+    * Starts batching the logged changes to the specified buffer,
+    * such as those that insert a row, so that they are written
+    * to the log as a single SETROW record.
+    * Any current batch is ended first.
+    * The batch is ended by {@link #endBatch()}, which the
+    * transaction calls before it unpins a buffer, commits
+    * or rolls back; a logged change to another buffer also
+    * ends it. Until then, the buffer stays pinned, so its
+    * page cannot be written before its changes are logged.
+    * @param buff the buffer whose changes are batched
     */
-   private void doRollback() {
-      Iterator<byte[]> iter = lm.iterator();
-      while (iter.hasNext()) {
-         byte[] bytes = iter.next();
-         LogRecord rec = LogRecord.createLogRecord(bytes); 
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(tx);
+   public synchronized void beginBatch(Buffer buff) {
+      endBatch();
+      synchronized (batchLock) {
+         batchBuff = buff;
+      }
+   }
+
+   /**
+    * Writes the batched changes, if any, to the log
+    * as a single record, and marks the buffer as
+    * modified by that record.
+    * The page is latched meanwhile, as for any other
+    * logged change, so that the changes of other
+    * transactions to the block are logged in the
+    * order in which the page receives them.
+    */
+   public synchronized void endBatch() {
+      Buffer buff = batchBuff;
+      if (buff == null)
+         return;
+      buff.latch();
+      try {
+         synchronized (batchLock) {
+            if (!batch.isEmpty()) {
+               BlockId blk = buff.block();
+               lastLSN = SetRowRecord.writeToLog(lm, txnum, lastLSN, blk, batch);
+               if (Snapshot.anyOpen(activity))
+                  Snapshot.recordChange(activity, blk, lastLSN, Snapshot.undoing(batch));
+               buff.setModified(txnum, lastLSN);
+               batch = new ArrayList<>();
+               batchSize = 0;
+            }
+            batchBuff = null;
+         }
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   /**
+    * Undoes the batched changes, if any, in the page, and
+    * discards them. They were never logged, so their undo
+    * needs no compensation, and a rollback does not depend
+    * on logging them.
+    */
+   private synchronized void undoBatch() {
+      Buffer buff = batchBuff;
+      if (buff == null)
+         return;
+      buff.latch();
+      try {
+         synchronized (batchLock) {
+            Snapshot.undoing(batch).accept(buff.contents());
+            batch = new ArrayList<>();
+            batchSize = 0;
+            batchBuff = null;
+         }
+      }
+      finally {
+         buff.unlatch();
+      }
+   }
+
+   /**
+    * Ends the current batch if it batches the changes
+    * to a buffer other than the specified one.
+    * The transaction calls this method before it latches
+    * a buffer to change it, so that it never waits for
+    * the latch of the batched buffer while holding another.
+    * @param buff the buffer about to be changed
+    */
+   public synchronized void endOtherBatch(Buffer buff) {
+      if (batchBuff != null && batchBuff != buff)
+         endBatch();
+   }
+
+   /**
+    * Adds the change to the batch if the changes to its buffer
+    * are being batched. A change to another buffer ends the batch.
+    * A batch whose record would exceed half a log block is written,
+    * and a new batch begins with the change; the limit ensures
+    * that the record of the batch and its compensation fit in
+    * a log record. A change that exceeds the limit by itself
+    * is not batched, but logged by its own record after the
+    * batch so far is written, so that a change that cannot
+    * be logged is rejected before the page is changed.
+    * @return true if the change was added to the batch
+    */
+   private boolean addToBatch(Buffer buff, SetRowRecord.Field f) {
+      if (batchBuff == null)
+         return false;
+      if (batchBuff != buff) {
+         endBatch();
+         return false;
+      }
+      int limit = lm.maxRecordSize() / 2;
+      if (f.maxSize() > limit) {
+         beginBatch(buff);
+         return false;
+      }
+      if (batchSize + f.maxSize() > limit)
+         beginBatch(buff);
+      synchronized (batchLock) {
+         batch.add(f);
+      }
+      batchSize += f.maxSize();
+      return true;
+   }
+
+   /**
+    * Adds the latest LSN of each active transaction to the
+    * specified table. The caller must prevent transactions
+    * from finishing meanwhile.
+    * @param activity the active transactions of the database
+    * @param chains the table, mapping transactions to their latest LSNs
+    * @return the LSN of the earliest START record of the transactions
+    */
+   static long activeChains(Activity activity, Map<Integer,Long> chains) {
+      long oldest = Long.MAX_VALUE;
+      for (RecoveryMgr rm : activity.transactions.values())
+         synchronized (rm) {
+            chains.put(rm.txnum, rm.lastLSN);
+            oldest = Math.min(oldest, rm.firstLSN);
+         }
+      return oldest;
+   }
+
+   /**
+    * Returns the changes to the specified block that the
+    * active transactions have batched but not yet logged.
+    * The caller must hold the latch of the block's page.
+    * @param activity the active transactions of the database
+    * @param blk a reference to the disk block
+    * @return the batched changes
+    */
+   static List<SetRowRecord.Field> batchedChanges(Activity activity, BlockId blk) {
+      List<SetRowRecord.Field> changes = new ArrayList<>();
+      for (RecoveryMgr rm : activity.transactions.values())
+         synchronized (rm.batchLock) {
+            if (rm.batchBuff != null && blk.equals(rm.batchBuff.block()))
+               changes.addAll(rm.batch);
+         }
+      return changes;
+   }
+
+   /**
+    * Sets the number of threads that apply the changes
+    * of the redo pass during recovery.
+    * @param threads the number of redo threads
+    */
+   public static void setRedoThreads(int threads) {
+      redoThreads = Math.max(1, threads);
+   }
+
+   /**
+    * Take a fuzzy checkpoint, without stopping the running
+    * transactions. The checkpoint records the end of the log
+    * at the time it began, the latest LSN of each active
+    * transaction, and the dirty page table of the buffer pool.
+    * The dictionary of file ids is logged again after the
+    * checkpoint begins, for the use of recovery.
+    * A transaction that finishes while the checkpoint is taken
+    * may still appear in the table, in which case its latest
+    * LSN is that of its COMMIT or ROLLBACK record.
+    * The pages written before the dirty page table is taken
+    * are not in it, so the files are forced before the
+    * checkpoint is logged.
+    * <P>
+    * Once the checkpoint is on disk, the log segments that
+    * precede the oldest record that recovery could need are removed.
+    * That record is the earliest of the beginning of the checkpoint,
+    * the recovery LSNs of the dirty pages, the START records
+    * of the active transactions, and the records that the
+    * open snapshots have yet to read.
+    * @param lm the log manager
+    * @param bm the buffer manager
+    * @return the LSN of the checkpoint's last record
+    */
+   public static long checkpoint(LogMgr lm, BufferMgr bm) {
+      long begin = lm.endOfLog();
+      FileIds.of(lm).logAll();
+      long oldest = begin;
+      Activity activity = Activity.of(lm);
+      Map<Integer,Long> att = new HashMap<>();
+      for (RecoveryMgr rm : activity.transactions.values())
+         synchronized (rm) {
+            att.put(rm.txnum, rm.lastLSN);
+            oldest = Math.min(oldest, rm.firstLSN);
+         }
+      Map<BlockId,Long> dpt = bm.dirtyPages();
+      bm.forceWritten();
+      for (long recLSN : dpt.values())
+         oldest = Math.min(oldest, recLSN);
+      oldest = Math.min(oldest, Snapshot.oldestNeeded(activity));
+      long lsn = CheckpointRecord.writeToLog(lm, begin, att, dpt);
+      lm.flush(lsn);
+      lm.truncate(oldest);
+      return lsn;
+   }
+
+   /**
+    * Rollback the transaction, by following the chain
+    * of the transaction's log records backwards from
+    * its latest one to its START record,
+    * undoing each of them.
+    * Each record holds the LSN of the transaction's
+    * previous record, so only the transaction's own
+    * records are read.
+    * Each undo is logged by a compensation record.
+    */
+   private synchronized void doRollback() {
+      long lsn = lastLSN;
+      while (lsn >= 0) {
+         byte[] bytes = lm.iterator(lsn).next();
+         LogRecord rec = FileIds.of(lm).createLogRecord(bytes);
+         if (rec.op() == COMPENSATE)
+            lsn = ((CompensationRecord) rec).undoNextLSN();
+         else {
+            if (rec.block() != null)
+               lastLSN = compensate(txnum, lastLSN, rec);
+            lsn = rec.prevLSN();
          }
       }
    }
 
    /**
-    * Do a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * Do a complete database recovery, in three passes.
+    * <P>
+    * The analysis pass reads the log backwards from its end
+    * to the beginning of the last complete checkpoint,
+    * after the file ids logged since then have been loaded.
+    * It finds the unfinished transactions: those that
+    * have log records after the checkpoint began but no
+    * COMMIT or ROLLBACK record, and those of the checkpoint's
+    * active transaction table that did not finish later.
+    * The table's entry of a transaction whose START record
+    * follows the checkpoint's beginning is ignored, since the
+    * scan has seen all of that transaction's records.
+    * Transaction numbers start over when the system restarts,
+    * but recovery ends with a checkpoint, so the scan sees
+    * a single transaction of each number.
+    * It also completes the checkpoint's dirty page table with
+    * the blocks changed after the checkpoint began.
+    * <P>
+    * The redo pass repeats history: starting at the earliest
+    * recovery LSN of the dirty page table, it redoes in log
+    * order every change to a dirty block that is not older than
+    * the block's recovery LSN, including the compensations.
+    * The records it needs are read during the backward scan,
+    * and are then applied by a pool of threads; the changes
+    * to a block are all applied by the same thread, in log order.
+    * <P>
+    * The undo pass then follows the chains of the unfinished
+    * transactions backwards, always undoing the latest record
+    * of all the chains first, and logging a compensation for
+    * each undo. A ROLLBACK record is written for each
+    * transaction whose undo is complete.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<>();
-      Iterator<byte[]> iter = lm.iterator();
+      Map<Integer,Long> losers = new HashMap<>();
+      PriorityQueue<Loser> toUndo = new PriorityQueue<>();
+      Set<Integer> finishedTxs = new HashSet<>();
+      Set<Integer> startedTxs = new HashSet<>(); /* the transactions whose START follows the checkpoint's beginning */
+      Map<Integer,Long> att = new HashMap<>();
+      Map<BlockId,Long> dpt = new HashMap<>();
+      List<Long> redoLSNs = new ArrayList<>();
+      List<LogRecord> redoRecs = new ArrayList<>();
+      long begin = loadFileIds();
+      FileIds fileids = FileIds.of(lm);
+      long redoStart = -1;
+      LogIterator iter = lm.iterator();
       while (iter.hasNext()) {
          byte[] bytes = iter.next();
-         LogRecord rec = LogRecord.createLogRecord(bytes);
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+         long lsn = iter.lsn();
+         if (lsn == lastLSN)
+            continue; // the START record of this transaction
+         boolean analyzed = begin >= 0 && lsn < begin;
+         if (analyzed && redoStart < 0)
+            redoStart = dpt.isEmpty() ? Long.MAX_VALUE : Collections.min(dpt.values());
+         if (analyzed && lsn < redoStart)
+            break;
+         LogRecord rec = fileids.createLogRecord(bytes);
+         if (rec.block() != null) {
+            redoLSNs.add(lsn);
+            redoRecs.add(rec);
+         }
+         if (analyzed)
+            continue;
+         if (rec.block() != null)
+            dpt.merge(rec.block(), lsn, Math::min);
+         if (rec.op() == CHECKPOINT) {
+            CheckpointRecord cp = (CheckpointRecord) rec;
+            if (cp.beginLSN() == begin) {
+               att.putAll(cp.activeTxs());
+               for (Map.Entry<BlockId,Long> e : cp.dirtyPages().entrySet())
+                  dpt.merge(e.getKey(), e.getValue(), Math::min);
+            }
+         }
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
             finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(tx);
+         else if (rec.op() == START) {
+            startedTxs.add(rec.txNumber());
+            Long last = losers.remove(rec.txNumber());
+            if (last != null)
+               toUndo.add(new Loser(rec.txNumber(), last));
+         }
+         else if (rec.txNumber() >= 0 && !finishedTxs.contains(rec.txNumber()))
+            losers.putIfAbsent(rec.txNumber(), lsn);
+      }
+      // the scan saw the whole of a transaction that started after the
+      // checkpoint began, so its entry in the active table is ignored
+      for (Map.Entry<Integer,Long> e : att.entrySet())
+         if (!finishedTxs.contains(e.getKey()) && !startedTxs.contains(e.getKey()))
+            losers.putIfAbsent(e.getKey(), e.getValue());
+      for (Map.Entry<Integer,Long> e : losers.entrySet())
+         toUndo.add(new Loser(e.getKey(), e.getValue()));
+
+      int nthreads = Math.min(redoThreads, Math.max(1, redoRecs.size() / REDO_BATCH));
+      List<List<Integer>> parts = new ArrayList<>();
+      for (int t = 0; t < nthreads; t++)
+         parts.add(new ArrayList<>());
+      for (int i = redoRecs.size()-1; i >= 0; i--) {
+         LogRecord rec = redoRecs.get(i);
+         Long recLSN = dpt.get(rec.block());
+         if (recLSN != null && redoLSNs.get(i) >= recLSN)
+            parts.get(Math.floorMod(rec.block().hashCode(), nthreads)).add(i);
+      }
+      if (nthreads == 1)
+         redo(parts.get(0), redoLSNs, redoRecs);
+      else {
+         ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+         try {
+            List<Future<?>> results = new ArrayList<>();
+            for (List<Integer> part : parts)
+               results.add(pool.submit(() -> redo(part, redoLSNs, redoRecs)));
+            for (Future<?> result : results)
+               result.get();
+         }
+         catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("redo failed", e);
+         }
+         finally {
+            pool.shutdown();
+         }
+      }
+
+      while (!toUndo.isEmpty()) {
+         Loser loser = toUndo.poll();
+         if (loser.undoNext < 0) {
+            RollbackRecord.writeToLog(lm, loser.txnum, loser.lastLSN);
+            continue;
+         }
+         byte[] bytes = lm.iterator(loser.undoNext).next();
+         LogRecord rec = fileids.createLogRecord(bytes);
+         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            continue; // the transaction finished while the checkpoint was taken
+         if (rec.op() == COMPENSATE)
+            loser.undoNext = ((CompensationRecord) rec).undoNextLSN();
+         else {
+            if (rec.block() != null)
+               loser.lastLSN = compensate(loser.txnum, loser.lastLSN, rec);
+            loser.undoNext = rec.prevLSN();
+         }
+         toUndo.add(loser);
+      }
+   }
+
+   /**
+    * Reads the log backwards to the beginning of the last
+    * complete checkpoint, and loads the file ids logged
+    * since then, which are all the ids that the update
+    * records read by recovery can have.
+    * Only the FILEID and CHECKPOINT records are decoded.
+    * @return the LSN at which the checkpoint began, or -1 if there is none
+    */
+   private long loadFileIds() {
+      long begin = -1;
+      LogIterator iter = lm.iterator();
+      while (iter.hasNext()) {
+         byte[] bytes = iter.next();
+         if (begin >= 0 && iter.lsn() < begin)
+            break;
+         Page p = new Page(bytes);
+         if (p.getInt(0) == FILEID) {
+            FileIdRecord rec = new FileIdRecord(p);
+            FileIds.of(lm).register(rec.fileId(), rec.fileName());
+         }
+         else if (p.getInt(0) == CHECKPOINT && begin < 0) {
+            CheckpointRecord cp = new CheckpointRecord(p);
+            if (cp.isLast())
+               begin = cp.beginLSN();
+         }
+      }
+      return begin;
+   }
+
+   /**
+    * Redoes the specified records, in the order given.
+    * The buffers are marked as modified by this transaction.
+    * @param part the positions of the records to redo
+    * @param lsns the LSNs of the records
+    * @param recs the records
+    */
+   private void redo(List<Integer> part, List<Long> lsns, List<LogRecord> recs) {
+      for (int i : part) {
+         LogRecord rec = recs.get(i);
+         Buffer buff = bm.pin(rec.block());
+         rec.redo(buff.contents());
+         buff.setModified(txnum, lsns.get(i));
+         bm.unpin(buff);
+      }
+   }
+
+   /**
+    * Undoes the change of the specified update record,
+    * after logging a compensation record for it on behalf
+    * of the specified transaction.
+    * The buffer is marked as modified by this transaction.
+    * The page is latched, since other transactions may be
+    * changing other records of the block.
+    * @param undoTx the transaction whose change is undone
+    * @param prevLSN the LSN of that transaction's latest log record
+    * @param rec the update record
+    * @return the LSN of the compensation record
+    */
+   private long compensate(int undoTx, long prevLSN, LogRecord rec) {
+      Buffer buff = bm.pin(rec.block());
+      buff.latch();
+      long lsn;
+      try {
+         lsn = CompensationRecord.writeToLog(lm, undoTx, prevLSN, rec.prevLSN(), rec);
+         if (Snapshot.anyOpen(activity))
+            Snapshot.recordChange(activity, rec.block(), lsn, rec::redo);
+         rec.undo(buff.contents());
+         buff.setModified(txnum, lsn);
+      }
+      finally {
+         buff.unlatch();
+      }
+      bm.unpin(buff);
+      return lsn;
+   }
+
+   /**
+    * An unfinished transaction found by the analysis pass.
+    * The transactions are ordered so that the one
+    * having the latest record still to undo comes first.
+    */
+   private static class Loser implements Comparable<Loser> {
+      int txnum;
+      long lastLSN;  /* the LSN of the transaction's latest log record */
+      long undoNext; /* the LSN of the next record to undo */
+
+      Loser(int txnum, long lastLSN) {
+         this.txnum = txnum;
+         this.lastLSN = lastLSN;
+         this.undoNext = lastLSN;
+      }
+
+      public int compareTo(Loser other) {
+         return Long.compare(other.undoNext, undoNext);
       }
    }
 }
@@ -1,29 +1,29 @@
 package simpledb.tx.recovery;
 
+import java.util.*;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
-import simpledb.tx.Transaction;
 
 public class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset, oldval, newval;
+   private long prevLSN;
    private BlockId blk;
 
    /**
     * Create a new setint log record.
-    * @param bb the bytebuffer containing the log values
+    * @param rec the bytes of the log record
+    * @param fileids the dictionary of the log's file ids
     */
-   public SetIntRecord(Page p) {
-      int tpos = Integer.BYTES;
-      txnum = p.getInt(tpos);
-      int fpos = tpos + Integer.BYTES;
-      String filename = p.getString(fpos);
-      int bpos = fpos + Page.maxLength(filename.length());
-      int blknum = p.getInt(bpos);
+   public SetIntRecord(byte[] rec, FileIds fileids) {
+      RecordReader r = new RecordReader(rec);
+      txnum = (int) r.readVarint();
+      prevLSN = r.readVarint() - 1;
+      String filename = fileids.nameOf((int) r.readVarint());
+      int blknum = (int) r.readVarint();
       blk = new BlockId(filename, blknum);
-      int opos = bpos + Integer.BYTES;
-      offset = p.getInt(opos);
-      int vpos = opos + Integer.BYTES;      
-      val = p.getInt(vpos);
+      offset = (int) r.readVarint();
+      oldval = (int) r.readSigned();
+      newval = (int) r.readSigned();
    }
 
    public int op() {
@@ -34,45 +34,66 @@ public class SetIntRecord implements LogRecord {
       return txnum;
    }
 
+   public long prevLSN() {
+      return prevLSN;
+   }
+
+   public BlockId block() {
+      return blk;
+   }
+
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
+   }
+
+   /**
+    * Replace the specified data value in the page
+    * with the old value saved in the log record.
+    * @see simpledb.tx.recovery.LogRecord#undo(Page)
+    */
+   public void undo(Page p) {
+      p.setInt(offset, oldval);
+   }
+
+   /**
+    * Write the new value saved in the log record
+    * to the specified data value in the page.
+    * @see simpledb.tx.recovery.LogRecord#redo(Page)
+    */
+   public void redo(Page p) {
+      p.setInt(offset, newval);
    }
 
    /**
-    * Replace the specified data value with the value saved in the log record.
-    * The method pins a buffer to the specified block,
-    * calls setInt to restore the saved value,
-    * and unpins the buffer.
-    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    * Returns the change of this record, for its compensation.
     */
-   public void undo(Transaction tx) {
-      tx.pin(blk);
-      tx.setInt(blk, offset, val, false); // don't log the undo!
-      tx.unpin(blk);
+   List<SetRowRecord.Field> changes() {
+      return Collections.singletonList(new SetRowRecord.Field(offset, oldval, newval));
    }
 
    /**
     * A static method to write a setInt record to the log.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * integer value at that offset.
-    * @return the LSN of the last log value
+    * followed by the transaction id, the LSN of the
+    * transaction's previous log record, the id of the file,
+    * the number and offset of the modified block, and the
+    * previous and new integer values at that offset.
+    * Apart from the operator, the values are variable-length
+    * integers, so that a typical record takes a few bytes
+    * more than the values it holds.
+    * @return the LSN of the log record
     */
-   public static int writeToLog(LogMgr lm, int txnum, BlockId blk, int offset, int val) {
-      int tpos = Integer.BYTES;
-      int fpos = tpos + Integer.BYTES;
-      int bpos = fpos + Page.maxLength(blk.fileName().length());
-      int opos = bpos + Integer.BYTES;
-      int vpos = opos + Integer.BYTES;
-      byte[] rec = new byte[vpos + Integer.BYTES];
-      Page p = new Page(rec);
-      p.setInt(0, SETINT);
-      p.setInt(tpos, txnum);
-      p.setString(fpos, blk.fileName());
-      p.setInt(bpos, blk.number());
-      p.setInt(opos, offset);
-      p.setInt(vpos, val);
+   public static long writeToLog(LogMgr lm, int txnum, long prevLSN, BlockId blk, int offset, int oldval, int newval) {
+      int fileid = FileIds.of(lm).idOf(blk.fileName());
+      byte[] rec = new RecordWriter(SETINT)
+            .writeVarint(txnum)
+            .writeVarint(prevLSN + 1)
+            .writeVarint(fileid)
+            .writeVarint(blk.number())
+            .writeVarint(offset)
+            .writeSigned(oldval)
+            .writeSigned(newval)
+            .toBytes();
       return lm.append(rec);
    }
 }
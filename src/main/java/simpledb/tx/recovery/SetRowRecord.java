@@ -0,0 +1,161 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+
+/**
+ * The SETROW log record, which holds several changes to
+ * the same block, such as the fields and the slot flag
+ * of an inserted row, so that they cost a single append.
+ * The changes are undone in the reverse order of the record,
+ * and redone in its order.
+ */
+public class SetRowRecord implements LogRecord {
+   private int txnum;
+   private long prevLSN;
+   private BlockId blk;
+   private List<Field> fields = new ArrayList<>();
+
+   /**
+    * Create a new setrow log record.
+    * @param rec the bytes of the log record
+    * @param fileids the dictionary of the log's file ids
+    */
+   public SetRowRecord(byte[] rec, FileIds fileids) {
+      RecordReader r = new RecordReader(rec);
+      txnum = (int) r.readVarint();
+      prevLSN = r.readVarint() - 1;
+      String filename = fileids.nameOf((int) r.readVarint());
+      int blknum = (int) r.readVarint();
+      blk = new BlockId(filename, blknum);
+      int numfields = (int) r.readVarint();
+      for (int i=0; i<numfields; i++) {
+         long tag = r.readVarint();
+         int offset = (int) (tag >>> 1);
+         if ((tag & 1) == 0)
+            fields.add(new Field(offset, (int) r.readSigned(), (int) r.readSigned()));
+         else
+            fields.add(new Field(offset, r.readString(), r.readString()));
+      }
+   }
+
+   public int op() {
+      return SETROW;
+   }
+
+   public int txNumber() {
+      return txnum;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
+
+   public BlockId block() {
+      return blk;
+   }
+
+   public String toString() {
+      return "<SETROW " + txnum + " " + blk + " " + fields + ">";
+   }
+
+   /**
+    * Restores the old values of the changed fields,
+    * from the latest change to the earliest.
+    */
+   public void undo(Page p) {
+      for (int i = fields.size()-1; i >= 0; i--)
+         fields.get(i).write(p, fields.get(i).oldval);
+   }
+
+   /**
+    * Writes the new values of the changed fields,
+    * from the earliest change to the latest.
+    */
+   public void redo(Page p) {
+      for (Field f : fields)
+         f.write(p, f.newval);
+   }
+
+   /**
+    * Returns the changes of this record, in log order,
+    * for its compensation.
+    */
+   List<Field> changes() {
+      return fields;
+   }
+
+   /**
+    * A static method to write a setrow record to the log.
+    * This log record contains the SETROW operator,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous log record, the id of the file,
+    * the number of the modified block, the number of changes,
+    * and then for each change its offset and type,
+    * followed by its previous and new values.
+    * The values are encoded as in a {@link SetIntRecord}.
+    * @return the LSN of the log record
+    */
+   public static long writeToLog(LogMgr lm, int txnum, long prevLSN, BlockId blk, List<Field> fields) {
+      int fileid = FileIds.of(lm).idOf(blk.fileName());
+      RecordWriter w = new RecordWriter(SETROW)
+            .writeVarint(txnum)
+            .writeVarint(prevLSN + 1)
+            .writeVarint(fileid)
+            .writeVarint(blk.number())
+            .writeVarint(fields.size());
+      for (Field f : fields) {
+         if (f.oldval instanceof Integer)
+            w.writeVarint((long) f.offset << 1)
+             .writeSigned((Integer) f.oldval)
+             .writeSigned((Integer) f.newval);
+         else
+            w.writeVarint(((long) f.offset << 1) | 1)
+             .writeString((String) f.oldval)
+             .writeString((String) f.newval);
+      }
+      return lm.append(w.toBytes());
+   }
+
+   /**
+    * A change to an integer or string field of the block.
+    */
+   static class Field {
+      final int offset;
+      final Object oldval, newval;
+
+      Field(int offset, int oldval, int newval) {
+         this.offset = offset;
+         this.oldval = oldval;
+         this.newval = newval;
+      }
+
+      Field(int offset, String oldval, String newval) {
+         this.offset = offset;
+         this.oldval = oldval;
+         this.newval = newval;
+      }
+
+      /**
+       * Returns an upper bound on the size of the encoded change.
+       */
+      int maxSize() {
+         if (oldval instanceof Integer)
+            return 3 * 5;
+         return 5 + 2 * 5 + ((String) oldval).getBytes(Page.CHARSET).length
+                          + ((String) newval).getBytes(Page.CHARSET).length;
+      }
+
+      void write(Page p, Object val) {
+         if (val instanceof Integer)
+            p.setInt(offset, (Integer) val);
+         else
+            p.setString(offset, (String) val);
+      }
+
+      public String toString() {
+         return offset + ":" + oldval + "->" + newval;
+      }
+   }
+}
@@ -0,0 +1,188 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+import simpledb.buffer.Buffer;
+
+/**
+ * A consistent snapshot of the database, as seen by a read-only
+ * transaction. The snapshot contains the changes of the
+ * transactions that committed before it was taken, and none of
+ * the changes of the others, without locking anything.
+ * <p>
+ * A block is read from the snapshot by copying its current page
+ * and undoing, from the latest to the earliest, the changes that
+ * the snapshot does not contain. These are the changes logged
+ * after the snapshot was taken, which are kept in memory as
+ * versions of their blocks while any snapshot is open,
+ * the changes that the transactions active at that time logged
+ * before it, which are read from the log when the snapshot is taken,
+ * and the changes of the active transactions that are batched
+ * but not yet logged.
+ * Since a transaction changes a block or record only under an
+ * XLock, the changes of different transactions that are undone
+ * in the same page never overlap.
+ * A change that was compensated before the snapshot was taken
+ * is not undone, since the page no longer contains it.
+ * The snapshots and versions of each database are kept
+ * in its {@link Activity} table.
+ */
+public class Snapshot {
+   private final LogMgr lm;
+   private final Activity activity;
+   private final int blocksize;
+   private final long beginLSN;
+   private volatile long retainLSN; /* the oldest log record the snapshot still has to read */
+   private final Map<BlockId, TreeMap<Long, Consumer<Page>>> older = new HashMap<>();
+
+   /**
+    * Takes a snapshot of the database.
+    * The snapshot is registered before the end of the log is read,
+    * so that every change logged after that point is kept as a version.
+    * The latest records of the active transactions are read
+    * at the same time, with no transaction finishing meanwhile,
+    * so that a transaction is in the snapshot exactly if its
+    * COMMIT record precedes the snapshot's beginning.
+    * @param lm the log manager
+    * @param blocksize the size of a block
+    */
+   public Snapshot(LogMgr lm, int blocksize) {
+      this.lm = lm;
+      this.activity = Activity.of(lm);
+      this.blocksize = blocksize;
+      Map<Integer,Long> chains = new HashMap<>();
+      activity.finishing.writeLock().lock();
+      try {
+         retainLSN = 0;
+         activity.snapshots.add(this);
+         beginLSN = lm.endOfLog();
+         retainLSN = RecoveryMgr.activeChains(activity, chains);
+      }
+      finally {
+         activity.finishing.writeLock().unlock();
+      }
+      for (long lsn : chains.values())
+         while (lsn >= 0) {
+            LogRecord rec = FileIds.of(lm).createLogRecord(lm.iterator(lsn).next());
+            if (rec.op() == LogRecord.COMPENSATE) {
+               // a later compensation is kept as a version, which redoes the
+               // undone change; an earlier one left the page without it
+               lsn = (lsn >= beginLSN) ? rec.prevLSN()
+                                       : ((CompensationRecord) rec).undoNextLSN();
+               continue;
+            }
+            BlockId blk = rec.block();
+            if (blk != null)
+               older.computeIfAbsent(blk, b -> new TreeMap<>()).put(lsn, rec::undo);
+            lsn = rec.prevLSN();
+         }
+      retainLSN = Long.MAX_VALUE; // the later changes are kept in memory
+   }
+
+   /**
+    * Returns the contents of the buffer's block as of the snapshot.
+    * The page is latched while it is copied, together with
+    * the versions of the block and the changes batched for it,
+    * so that they match the copy.
+    * @param buff a buffer pinned to the block
+    * @return a private copy of the block's page as of the snapshot
+    */
+   public Page read(Buffer buff) {
+      BlockId blk = buff.block();
+      Page p = new Page(blocksize);
+      List<SetRowRecord.Field> batched;
+      TreeMap<Long, Consumer<Page>> undos = new TreeMap<>();
+      buff.latch();
+      try {
+         buff.contents().copyTo(p);
+         batched = RecoveryMgr.batchedChanges(activity, blk);
+         ConcurrentSkipListMap<Long, Consumer<Page>> vs = activity.versions.get(blk);
+         if (vs != null)
+            undos.putAll(vs.tailMap(beginLSN));
+      }
+      finally {
+         buff.unlatch();
+      }
+      TreeMap<Long, Consumer<Page>> old = older.get(blk);
+      if (old != null)
+         undos.putAll(old);
+      undoing(batched).accept(p);
+      for (Consumer<Page> undo : undos.descendingMap().values())
+         undo.accept(p);
+      return p;
+   }
+
+   /**
+    * Closes the snapshot. The versions that no open
+    * snapshot needs any longer are discarded.
+    * The end of the log is read before the open snapshots,
+    * since a snapshot that is taken meanwhile begins after it.
+    */
+   public void close() {
+      activity.snapshots.remove(this);
+      long oldest = lm.endOfLog();
+      for (Snapshot s : activity.snapshots)
+         oldest = Math.min(oldest, s.beginLSN);
+      for (BlockId blk : activity.versions.keySet()) {
+         long limit = oldest;
+         activity.versions.computeIfPresent(blk, (b, vs) -> {
+            vs.headMap(limit).clear();
+            return vs.isEmpty() ? null : vs;
+         });
+      }
+   }
+
+   /**
+    * Returns true if a snapshot of the database is open, in which
+    * case the changes that are logged must be recorded by calling
+    * {@link #recordChange(Activity, BlockId, long, Consumer)}.
+    * A writer calls it after appending its log record.
+    * @param activity the table of the database
+    */
+   static boolean anyOpen(Activity activity) {
+      return !activity.snapshots.isEmpty();
+   }
+
+   /**
+    * Keeps a logged change as a version of its block.
+    * @param activity the table of the database
+    * @param blk the changed block
+    * @param lsn the LSN of the change's log record
+    * @param undo the action that undoes the change in a page
+    */
+   static void recordChange(Activity activity, BlockId blk, long lsn, Consumer<Page> undo) {
+      activity.versions.compute(blk, (b, vs) -> {
+         if (vs == null)
+            vs = new ConcurrentSkipListMap<>();
+         vs.put(lsn, undo);
+         return vs;
+      });
+   }
+
+   /**
+    * Returns the LSN of the oldest log record that an open
+    * snapshot still has to read, so that a checkpoint
+    * does not remove it from the log.
+    * @param activity the table of the database
+    */
+   static long oldestNeeded(Activity activity) {
+      long oldest = Long.MAX_VALUE;
+      for (Snapshot s : activity.snapshots)
+         oldest = Math.min(oldest, s.retainLSN);
+      return oldest;
+   }
+
+   /**
+    * Returns the action that restores the old values
+    * of the specified changes, from the latest to the earliest.
+    */
+   static Consumer<Page> undoing(List<SetRowRecord.Field> fields) {
+      return p -> {
+         for (int i = fields.size()-1; i >= 0; i--)
+            fields.get(i).write(p, fields.get(i).oldval);
+      };
+   }
+}
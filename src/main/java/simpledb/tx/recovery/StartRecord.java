@@ -1,8 +1,7 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import simpledb.file.*;
 import simpledb.log.LogMgr;
-import simpledb.tx.Transaction;
 
 public class StartRecord implements LogRecord {
    private int txnum;
@@ -23,12 +22,34 @@ public class StartRecord implements LogRecord {
    public int txNumber() {
       return txnum;
    }
+
+   /**
+    * Returns -1, because the start record is
+    * the first record of its transaction.
+    */
+   public long prevLSN() {
+      return -1;
+   }
    
+   /**
+    * Returns null, because a start record
+    * does not change a block.
+    */
+   public BlockId block() {
+      return null;
+   }
+
    /**
     * Does nothing, because a start record
     * contains no undo information.
     */
-   public void undo(Transaction tx) {}
+   public void undo(Page p) {}
+
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(Page p) {}
    
    public String toString() {
       return "<START " + txnum + ">";
@@ -38,9 +59,9 @@ public class StartRecord implements LogRecord {
     * A static method to write a start record to the log.
     * This log record contains the START operator,
     * followed by the transaction id.
-    * @return the LSN of the last log value
+    * @return the LSN of the log record
     */
-   public static int writeToLog(LogMgr lm, int txnum) {
+   public static long writeToLog(LogMgr lm, int txnum) {
       byte[] rec = new byte[2*Integer.BYTES];
       Page p = new Page(rec);
       p.setInt(0, START);